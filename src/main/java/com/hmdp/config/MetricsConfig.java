@@ -0,0 +1,95 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheRefresher;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.SeckillOrderCanceller;
+import com.hmdp.utils.SeckillStockReconciler;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.context.annotation.Configuration;
+
+import javax.annotation.Resource;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * 把各组件内部的计数导出为监控指标，通过 /actuator/prometheus 采集。
+ * 计数仍由组件自己的LongAdder维护，采集时才读取，不增加请求路径上的开销。
+ * 这些组件本身也依赖MeterRegistry，所以在所有单例创建完成后再注册，不用MeterBinder bean
+ */
+@Configuration
+public class MetricsConfig implements SmartInitializingSingleton {
+    @Resource
+    private MeterRegistry meterRegistry;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private CacheRefresher refresher;
+    @Resource
+    private HotKeyDetector hotKeys;
+    @Resource
+    private SeckillAdmission admission;
+    //关闭超时取消时没有这个bean
+    @Resource
+    private ObjectProvider<SeckillOrderCanceller> cancellers;
+    //关闭核对时没有这个bean
+    @Resource
+    private ObjectProvider<SeckillStockReconciler> reconcilers;
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        bindCache(meterRegistry);
+        bindSeckill(meterRegistry);
+    }
+
+    /**
+     * 缓存各层的命中情况、重建队列和热点key
+     */
+    private void bindCache(MeterRegistry registry) {
+        counter(registry, "hmdp.cache.layer", "进程内缓存和redis的命中次数", cacheClient, CacheClient::getLocalHits, "layer", "local", "result", "hit");
+        counter(registry, "hmdp.cache.layer", "进程内缓存和redis的命中次数", cacheClient, CacheClient::getLocalMisses, "layer", "local", "result", "miss");
+        counter(registry, "hmdp.cache.layer", "进程内缓存和redis的命中次数", cacheClient, CacheClient::getRedisHits, "layer", "redis", "result", "hit");
+        counter(registry, "hmdp.cache.layer", "进程内缓存和redis的命中次数", cacheClient, CacheClient::getRedisMisses, "layer", "redis", "result", "miss");
+        counter(registry, "hmdp.cache.coalesced", "等待其他线程加载结果的次数", cacheClient, CacheClient::getCoalesced);
+        counter(registry, "hmdp.cache.bloom.rejects", "被布隆过滤器拦截的次数", cacheClient, CacheClient::getBloomRejects);
+        counter(registry, "hmdp.cache.refresh.refreshed", "提前刷新的次数", refresher, CacheRefresher::getRefreshed);
+        counter(registry, "hmdp.cache.refresh.rejected", "重建队列已满被拒绝的次数", refresher, CacheRefresher::getRejected);
+        gauge(registry, "hmdp.cache.refresh.queue", "重建队列中等待的任务数", refresher, CacheRefresher::getQueueSize);
+        gauge(registry, "hmdp.cache.refresh.tracked", "统计访问次数的key数", refresher, CacheRefresher::getTrackedKeys);
+        gauge(registry, "hmdp.hot-key.count", "当前的热点key数", hotKeys, HotKeyDetector::getHotKeyCount);
+    }
+
+    /**
+     * 秒杀限流、超时取消和库存核对
+     */
+    private void bindSeckill(MeterRegistry registry) {
+        counter(registry, "hmdp.seckill.admission", "秒杀请求限流结果", admission, SeckillAdmission::getAdmitted, "result", "admitted");
+        counter(registry, "hmdp.seckill.admission", "秒杀请求限流结果", admission, SeckillAdmission::getShedLocal, "result", "shed_local");
+        counter(registry, "hmdp.seckill.admission", "秒杀请求限流结果", admission, SeckillAdmission::getShedCluster, "result", "shed_cluster");
+        cancellers.ifAvailable(canceller ->
+                counter(registry, "hmdp.seckill.canceled", "超时未支付被取消的订单数", canceller, SeckillOrderCanceller::getCanceled));
+        reconcilers.ifAvailable(reconciler -> {
+            counter(registry, "hmdp.seckill.reconcile.runs", "核对次数", reconciler, SeckillStockReconciler::getRuns);
+            counter(registry, "hmdp.seckill.reconcile.checked", "核对的券数", reconciler, SeckillStockReconciler::getCheckedVouchers);
+            counter(registry, "hmdp.seckill.reconcile.repaired", "修复的订单数", reconciler, SeckillStockReconciler::getRepairedOrders);
+            gauge(registry, "hmdp.seckill.reconcile.drifted", "上一轮库存不一致的券数", reconciler, SeckillStockReconciler::getDriftedVouchers);
+            gauge(registry, "hmdp.seckill.reconcile.pending", "上一轮未落库的订单数", reconciler, SeckillStockReconciler::getPendingOrders);
+            gauge(registry, "hmdp.seckill.reconcile.stock-drift", "上一轮库存差值合计", reconciler, SeckillStockReconciler::getStockDrift);
+            gauge(registry, "hmdp.seckill.reconcile.duration", "上一轮核对的耗时毫秒数", reconciler, SeckillStockReconciler::getLastRunMillis);
+        });
+    }
+
+    private static <T> void counter(MeterRegistry registry, String name, String description, T obj,
+                                    ToDoubleFunction<T> f, String... tags) {
+        FunctionCounter.builder(name, obj, f).description(description).tags(tags).register(registry);
+    }
+
+    private static <T> void gauge(MeterRegistry registry, String name, String description, T obj,
+                                  ToDoubleFunction<T> f) {
+        Gauge.builder(name, obj, f).description(description).register(registry);
+    }
+}
@@ -1,5 +1,6 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.HotKeyDetector;
 import com.hmdp.utils.LogInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
 import org.springframework.context.annotation.Configuration;
@@ -14,6 +15,8 @@ public class MvcConfig implements WebMvcConfigurer {
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         //登录拦截器
@@ -25,9 +28,10 @@ public class MvcConfig implements WebMvcConfigurer {
                 "/shop-type/**",
                 "/upload/**",
                 "/voucher/**",
-                "/test/**"
+                "/test/**",
+                "/actuator/**"
         ).order(1);
         //越小优先级越高
-        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).addPathPatterns("/**").order(0);
+        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate, hotKeyDetector)).addPathPatterns("/**").order(0);
     }
 }
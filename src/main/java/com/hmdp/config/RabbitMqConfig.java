@@ -1,15 +1,26 @@
 package com.hmdp.config;
 
 import org.springframework.amqp.core.*;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.SimpleRabbitListenerContainerFactoryConfigurer;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.ArrayList;
+import java.util.List;
+
 
 
 @Configuration
 public class RabbitMqConfig {
     private static final String QUEUE = "seckillQueue";
     private static final String EXCHANGE = "seckillExchange";
+    //分区队列 seckillQueue.partition.i，路由键 partition.i，不会匹配到 seckill.# 的绑定
+    public static final String PARTITION_QUEUE_PREFIX = "seckillQueue.partition.";
+    public static final String PARTITION_ROUTING_PREFIX = "partition.";
 
     @Bean
     public Queue queue(){
@@ -24,4 +35,57 @@ public class RabbitMqConfig {
         return BindingBuilder.bind(queue()).to(topicExchange()).with("seckill.#");
     }
 
+    /**
+     * 批量消费的监听容器：一次最多取batchSize条，最多等待receiveTimeout毫秒，整批ack
+     */
+    @Bean
+    @ConditionalOnProperty(name = "hmdp.seckill.consumer.mode", havingValue = "batch")
+    public SimpleRabbitListenerContainerFactory batchContainerFactory(
+            SimpleRabbitListenerContainerFactoryConfigurer configurer, ConnectionFactory connectionFactory,
+            @Value("${hmdp.seckill.consumer.batch-size:100}") int batchSize,
+            @Value("${hmdp.seckill.consumer.batch-timeout:50}") long receiveTimeout){
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batchSize);
+        factory.setReceiveTimeout(receiveTimeout);
+        //prefetch至少要能装下一整批
+        factory.setPrefetchCount(batchSize);
+        return factory;
+    }
+
+    /**
+     * 分区消费：按用户id把消息路由到partitions个队列。
+     * 队列开启single active consumer，多个节点同时监听时只有一个消费者在消费，其余待命，
+     * 保证同一分区的消息在集群内也只被一个线程顺序处理。已经存在的分区队列参数不同，需要先删除再声明
+     */
+    @Bean
+    @ConditionalOnProperty(name = "hmdp.seckill.consumer.mode", havingValue = "partitioned")
+    public Declarables partitionDeclarables(@Value("${hmdp.seckill.consumer.partitions:8}") int partitions){
+        List<Declarable> declarables = new ArrayList<>(partitions * 2);
+        for (int i = 0; i < partitions; i++) {
+            Queue queue = QueueBuilder.durable(PARTITION_QUEUE_PREFIX + i).singleActiveConsumer().build();
+            declarables.add(queue);
+            declarables.add(BindingBuilder.bind(queue).to(topicExchange()).with(PARTITION_ROUTING_PREFIX + i));
+        }
+        return new Declarables(declarables);
+    }
+
+    /**
+     * 分区消费的监听容器：每个分区一个消费线程，同一用户的消息顺序处理，prefetch可以放大
+     */
+    @Bean
+    @ConditionalOnProperty(name = "hmdp.seckill.consumer.mode", havingValue = "partitioned")
+    public SimpleRabbitListenerContainerFactory partitionContainerFactory(
+            SimpleRabbitListenerContainerFactoryConfigurer configurer, ConnectionFactory connectionFactory,
+            @Value("${hmdp.seckill.consumer.partition-prefetch:250}") int prefetch){
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setConcurrentConsumers(1);
+        factory.setMaxConcurrentConsumers(1);
+        factory.setPrefetchCount(prefetch);
+        return factory;
+    }
+
 }
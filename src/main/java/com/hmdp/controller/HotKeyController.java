@@ -0,0 +1,31 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.HotKeyDetector;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * 热点key查询
+ */
+@RestController
+@RequestMapping("/hot-key")
+public class HotKeyController {
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    /**
+     * 查询本节点访问次数最多的热点key
+     * @param k 返回个数，不传时使用hmdp.hot-key.top-k
+     * @return key -> 最近一个衰减周期的估计访问次数，登录token已脱敏
+     */
+    @GetMapping("/top")
+    public Result topK(@RequestParam(value = "k", defaultValue = "0") Integer k) {
+        return Result.ok(hotKeyDetector.topK(k));
+    }
+}
@@ -4,6 +4,7 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillStockRouter;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -22,6 +23,8 @@ public class VoucherController {
 
     @Resource
     private IVoucherService voucherService;
+    @Resource
+    private SeckillStockRouter stockRouter;
 
     /**
      * 新增普通券
@@ -41,6 +44,9 @@ public class VoucherController {
      */
     @PostMapping("seckill")
     public Result addSeckillVoucher(@RequestBody Voucher voucher) {
+        if (voucher.getStockShards() != null && !stockRouter.isShardingAllowed(voucher.getStockShards())) {
+            return Result.fail("stream订单队列不支持库存分片");
+        }
         voucherService.addSeckillVoucher(voucher);
         return Result.ok(voucher.getId());
     }
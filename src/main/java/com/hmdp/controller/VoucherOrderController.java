@@ -4,10 +4,13 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
 
@@ -22,10 +25,31 @@ import javax.annotation.Resource;
 @RestController
 @RequestMapping("/voucher-order")
 public class VoucherOrderController {
+    private static final long MAX_STATUS_WAIT = 30000L;
     @Resource
     private IVoucherOrderService voucherOrderService;
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 查询秒杀订单处理状态
+     * @param orderId 订单id
+     * @param timeout 仍在排队时最多等待的毫秒数，0表示立即返回
+     * @return 订单状态
+     */
+    @GetMapping("status/{id}")
+    public DeferredResult<Result> queryOrderStatus(@PathVariable("id") Long orderId,
+                                                   @RequestParam(value = "timeout", defaultValue = "0") Long timeout) {
+        return voucherOrderService.queryOrderStatus(orderId, Math.min(timeout, MAX_STATUS_WAIT));
+    }
+
+    /**
+     * 取消未支付的秒杀订单，归还库存
+     */
+    @PostMapping("{id}/cancel")
+    public Result cancelVoucherOrder(@PathVariable("id") Long orderId) {
+        return voucherOrderService.cancelVoucherOrder(orderId);
+    }
 }
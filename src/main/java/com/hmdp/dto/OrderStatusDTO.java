@@ -0,0 +1,17 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class OrderStatusDTO {
+    private Long orderId;
+    /**
+     * PENDING:排队中 CREATED:已创建 FAILED:失败
+     */
+    private String state;
+    private String reason;
+}
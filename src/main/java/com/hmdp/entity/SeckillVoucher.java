@@ -37,6 +37,11 @@ public class SeckillVoucher implements Serializable {
      */
     private Integer stock;
 
+    /**
+     * 秒杀库存在redis中的分片数
+     */
+    private Integer stockShards;
+
     /**
      * 创建时间
      */
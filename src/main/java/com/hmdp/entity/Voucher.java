@@ -90,6 +90,12 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private LocalDateTime endTime;
 
+    /**
+     * 秒杀库存在redis中的分片数，为空时使用默认配置
+     */
+    @TableField(exist = false)
+    private Integer stockShards;
+
     /**
      * 创建时间
      */
@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,30 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 多行insert批量写入订单
+     * @param orders 订单列表
+     * @return 影响行数
+     */
+    int insertBatch(@Param("orders") List<VoucherOrder> orders);
+
+    /**
+     * 依赖(user_id, voucher_id)唯一索引，重复的订单直接忽略
+     * @param order 订单
+     * @return 影响行数，重复时为0
+     */
+    int insertIgnore(VoucherOrder order);
+
+    /**
+     * 多行insert ignore，重复的订单直接忽略
+     * @param orders 订单列表
+     * @return 实际写入的行数
+     */
+    int insertIgnoreBatch(@Param("orders") List<VoucherOrder> orders);
+
+    /**
+     * @param name 索引名
+     * @return 索引包含的列数，不存在时为0
+     */
+    int countIndex(@Param("name") String name);
 }
@@ -0,0 +1,36 @@
+package com.hmdp.rabbitmq;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批量消费秒杀订单：攒够batch-size条或等待batch-timeout毫秒后整批落库，整批ack
+ */
+@Slf4j
+@Service
+@ConditionalOnExpression("'${hmdp.seckill.order-queue:rabbitmq}' == 'rabbitmq' and '${hmdp.seckill.consumer.mode:single}' == 'batch'")
+public class MQBatchReceiver {
+    @Resource
+    private VoucherOrderServiceImpl voucherOrderService;
+    @RabbitListener(queues = "seckillQueue", containerFactory = "batchContainerFactory")
+    public void receive(List<Message> messages){
+        log.info("收到批量消息" + messages.size() + "条");
+        List<VoucherOrder> orders = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            orders.add(JSONUtil.toBean(new String(message.getBody(), StandardCharsets.UTF_8), VoucherOrder.class));
+        }
+        //抛出异常时整批重新入队
+        voucherOrderService.handleVoucherOrderBatch(orders);
+    }
+}
@@ -0,0 +1,47 @@
+package com.hmdp.rabbitmq;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.config.RabbitMqConfig;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.annotation.RabbitListenerConfigurer;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerEndpoint;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistrar;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 分区消费秒杀订单：每个分区队列只有一个活跃消费者(多个节点之间也是)，同一用户的订单只会被一个线程顺序处理，不需要用户锁
+ */
+@Slf4j
+@Service
+@ConditionalOnExpression("'${hmdp.seckill.order-queue:rabbitmq}' == 'rabbitmq' and '${hmdp.seckill.consumer.mode:single}' == 'partitioned'")
+public class MQPartitionReceiver implements RabbitListenerConfigurer {
+    @Resource
+    private VoucherOrderServiceImpl voucherOrderService;
+    @Resource
+    private SimpleRabbitListenerContainerFactory partitionContainerFactory;
+    @Value("${hmdp.seckill.consumer.partitions:8}")
+    private int partitions;
+
+    @Override
+    public void configureRabbitListeners(RabbitListenerEndpointRegistrar registrar) {
+        for (int i = 0; i < partitions; i++) {
+            SimpleRabbitListenerEndpoint endpoint = new SimpleRabbitListenerEndpoint();
+            endpoint.setId("seckillPartition-" + i);
+            endpoint.setQueueNames(RabbitMqConfig.PARTITION_QUEUE_PREFIX + i);
+            endpoint.setMessageListener(message -> {
+                String body = new String(message.getBody(), StandardCharsets.UTF_8);
+                log.info("收到消息" + body);
+                voucherOrderService.handleVoucherOrder(JSONUtil.toBean(body, VoucherOrder.class), true);
+            });
+            registrar.registerEndpoint(endpoint, partitionContainerFactory);
+        }
+    }
+}
@@ -1,18 +1,141 @@
 package com.hmdp.rabbitmq;
 
+import com.hmdp.config.RabbitMqConfig;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.index.PathBasedRedisIndexDefinition;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 秒杀消息先同步追加到本地outbox日志，由后台线程批量投递并等待broker的publisher confirm，
+ * 确认后才推进outbox的已确认偏移量；进程重启后未确认的消息会重新投递，消费端需要幂等。
+ * outbox关闭或写满时退化为直接发送
+ */
 @Service
 @Slf4j
 public class MQSender {
+    private static final String EXCHANGE = "seckillExchange";
+    private static final String ROUTING_KEY = "seckill.message";
+
     @Autowired
     private RabbitTemplate rabbitTemplate;
+    @Value("${hmdp.seckill.consumer.mode:single}")
+    private String consumerMode;
+    @Value("${hmdp.seckill.consumer.partitions:8}")
+    private int partitions;
+    @Value("${hmdp.seckill.outbox.enabled:true}")
+    private boolean outboxEnabled;
+    @Value("${hmdp.seckill.outbox.path:./data/outbox/seckill-${server.port:8080}.log}")
+    private String outboxPath;
+    @Value("${hmdp.seckill.outbox.capacity:64}")
+    private int outboxCapacity;
+    @Value("${hmdp.seckill.outbox.batch-size:200}")
+    private int batchSize;
+    @Value("${hmdp.seckill.outbox.confirm-timeout:5000}")
+    private long confirmTimeout;
+
+    private MessageOutbox outbox;
+    private Thread publisher;
+    private volatile boolean running;
+    private final Object signal = new Object();
+
+    @PostConstruct
+    private void init() throws IOException {
+        if (!outboxEnabled) {
+            return;
+        }
+        outbox = new MessageOutbox(outboxPath, outboxCapacity * 1024L * 1024L);
+        running = true;
+        publisher = new Thread(this::publishLoop, "seckill-outbox-publisher");
+        publisher.setDaemon(true);
+        publisher.start();
+    }
+
+    @PreDestroy
+    private void destroy() throws IOException, InterruptedException {
+        if (outbox == null) {
+            return;
+        }
+        running = false;
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+        publisher.join(confirmTimeout);
+        outbox.close();
+    }
+
     public void sendSeckillMessage(String message){
+        send(ROUTING_KEY, message);
+    }
+
+    /**
+     * 分区消费模式下按用户id选择分区，同一用户的消息进入同一个队列
+     */
+    public void sendSeckillMessage(String message, Long userId){
+        if (!"partitioned".equals(consumerMode)) {
+            send(ROUTING_KEY, message);
+            return;
+        }
+        send(RabbitMqConfig.PARTITION_ROUTING_PREFIX + Math.floorMod(userId, (long) partitions), message);
+    }
+
+    private void send(String routingKey, String message){
         log.info("发送消息" + message);
-        rabbitTemplate.convertAndSend("seckillExchange","seckill.message",message);
+        if (outbox != null && outbox.append(routingKey, message)) {
+            synchronized (signal) {
+                signal.notifyAll();
+            }
+            return;
+        }
+        if (outbox != null) {
+            log.warn("outbox已满，直接发送消息");
+        }
+        rabbitTemplate.convertAndSend(EXCHANGE, routingKey, message);
+    }
+
+    private void publishLoop() {
+        while (running || !outbox.isEmpty()) {
+            try {
+                if (outbox.isEmpty()) {
+                    synchronized (signal) {
+                        signal.wait(100);
+                    }
+                    continue;
+                }
+                MessageOutbox.Batch batch = outbox.peek(batchSize);
+                //投递前先把这批记录刷盘，broker确认后宕机也不会丢失未确认的记录
+                outbox.force();
+                List<String[]> records = batch.getRecords();
+                rabbitTemplate.invoke(operations -> {
+                    for (String[] record : records) {
+                        operations.convertAndSend(EXCHANGE, record[0], record[1]);
+                    }
+                    operations.waitForConfirmsOrDie(confirmTimeout);
+                    return null;
+                });
+                outbox.confirm(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("outbox消息投递失败，稍后重试", e);
+                if (!running) {
+                    //关闭时broker不可用，剩余消息留在outbox中，重启后重新投递
+                    return;
+                }
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
     }
 }
@@ -6,12 +6,14 @@ import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.impl.VoucherOrderServiceImpl;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 
 @Slf4j
 @Service
+@ConditionalOnExpression("'${hmdp.seckill.order-queue:rabbitmq}' == 'rabbitmq' and '${hmdp.seckill.consumer.mode:single}' == 'single'")
 public class MQreceiver {
     @Resource
     private VoucherOrderServiceImpl voucherOrderService;
@@ -0,0 +1,196 @@
+package com.hmdp.rabbitmq;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 本地待投递消息日志，基于内存映射文件的环形追加写。
+ * 文件头保存已确认偏移量，之后依次是记录：[int 长度][short 路由键长度][路由键][消息体]。
+ * 长度为0表示日志结尾，-1表示回绕到文件头之后继续读。
+ * 进程重启后从已确认偏移量开始扫描，未确认的消息会被重新投递。
+ * 打开时对文件加独占锁，同一个文件不能被两个进程同时映射。
+ */
+public class MessageOutbox {
+    private static final int HEADER = 64;
+    private static final int MAGIC = 0x4F424F58;
+    private static final int WRAP = -1;
+
+    //持有期间其他进程无法打开同一个文件，关闭时释放
+    private final FileLock lock;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    //已经确认的偏移量
+    private int committed;
+    //下一条记录的写入偏移量
+    private int writePos;
+
+    /**
+     * @param capacity 文件字节数，偏移量用int保存，不能超过2GB
+     */
+    public MessageOutbox(String path, long capacity) throws IOException {
+        if (capacity < HEADER + 64 || capacity > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("outbox容量必须在" + (HEADER + 64) + "字节到2GB之间: " + capacity);
+        }
+        File file = new File(path);
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        this.capacity = (int) capacity;
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            FileLock fileLock;
+            try {
+                fileLock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                //本进程内已经打开
+                fileLock = null;
+            }
+            if (fileLock == null) {
+                throw new IOException("outbox文件已被其他进程使用: " + file.getAbsolutePath());
+            }
+            this.lock = fileLock;
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        if (buffer.getInt(8) != MAGIC) {
+            buffer.putInt(8, MAGIC);
+            buffer.putLong(0, HEADER);
+            buffer.putInt(HEADER, 0);
+        }
+        committed = (int) buffer.getLong(0);
+        writePos = scanEnd(committed);
+    }
+
+    /**
+     * 追加一条消息
+     * @return 空间不足时返回false
+     */
+    public synchronized boolean append(String routingKey, String message) {
+        byte[] rk = routingKey.getBytes(StandardCharsets.UTF_8);
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        int len = 2 + rk.length + body.length;
+        //记录本身 + 记录后面的结尾标记
+        int need = 4 + len + 4;
+        if (writePos >= committed) {
+            if (capacity - writePos < need) {
+                //尾部空间不够，回绕到文件头，不能追上未确认的记录
+                if (committed - HEADER <= need) {
+                    return false;
+                }
+                buffer.putInt(HEADER, 0);
+                buffer.putInt(writePos, WRAP);
+                writePos = HEADER;
+            }
+        } else if (committed - writePos <= need) {
+            return false;
+        }
+        int pos = writePos;
+        //先写结尾标记和内容，最后写长度，写到一半进程退出时这条记录不可见
+        buffer.putInt(pos + 4 + len, 0);
+        buffer.position(pos + 4);
+        buffer.putShort((short) rk.length);
+        buffer.put(rk);
+        buffer.put(body);
+        buffer.putInt(pos, len);
+        writePos = pos + 4 + len;
+        return true;
+    }
+
+    /**
+     * 读取从已确认偏移量开始最多max条未确认的消息
+     */
+    public synchronized Batch peek(int max) {
+        List<String[]> records = new ArrayList<>();
+        int pos = committed;
+        while (pos != writePos && records.size() < max) {
+            int len = buffer.getInt(pos);
+            if (len == WRAP) {
+                pos = HEADER;
+                continue;
+            }
+            if (len == 0) {
+                break;
+            }
+            int rkLen = buffer.getShort(pos + 4);
+            byte[] rk = new byte[rkLen];
+            byte[] body = new byte[len - 2 - rkLen];
+            buffer.position(pos + 6);
+            buffer.get(rk);
+            buffer.get(body);
+            records.add(new String[]{new String(rk, StandardCharsets.UTF_8), new String(body, StandardCharsets.UTF_8)});
+            pos += 4 + len;
+        }
+        return new Batch(records, pos);
+    }
+
+    /**
+     * 确认到指定偏移量之前的消息都已经投递成功
+     */
+    public synchronized void confirm(Batch batch) {
+        committed = batch.end;
+        if (committed == writePos) {
+            //已经全部确认，从头开始写，减少回绕
+            buffer.putInt(HEADER, 0);
+            committed = writePos = HEADER;
+        }
+        buffer.putLong(0, committed);
+    }
+
+    public synchronized boolean isEmpty() {
+        return committed == writePos;
+    }
+
+    /**
+     * 把映射内存中的修改刷到磁盘
+     */
+    public void force() {
+        buffer.force();
+    }
+
+    public void close() throws IOException {
+        force();
+        lock.release();
+        lock.channel().close();
+    }
+
+    private int scanEnd(int pos) {
+        while (true) {
+            int len = buffer.getInt(pos);
+            if (len == WRAP) {
+                pos = HEADER;
+                continue;
+            }
+            if (len <= 0) {
+                return pos;
+            }
+            pos += 4 + len;
+        }
+    }
+
+    public static class Batch {
+        private final List<String[]> records;
+        private final int end;
+
+        private Batch(List<String[]> records, int end) {
+            this.records = records;
+            this.end = end;
+        }
+
+        /**
+         * @return 每条记录为 {路由键, 消息体}
+         */
+        public List<String[]> getRecords() {
+            return records;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.hmdp.rabbitmq;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.SeckillOrderQueue;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+@Component
+@ConditionalOnProperty(name = "hmdp.seckill.order-queue", havingValue = "rabbitmq", matchIfMissing = true)
+public class RabbitOrderQueue implements SeckillOrderQueue {
+    @Resource
+    private MQSender mqSender;
+
+    @Override
+    public void send(VoucherOrder order) {
+        mqSender.sendSeckillMessage(JSONUtil.toJsonStr(order), order.getUserId());
+    }
+}
@@ -3,10 +3,13 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * <p>
@@ -27,4 +30,10 @@ public interface IUserService extends IService<User> {
     Result sign();
 
     Result signCount();
+
+    /**
+     * 批量查询用户，优先从缓存读取
+     * @return 按ids的顺序排列的 用户id -> 用户，不存在的用户不放入
+     */
+    Map<Long, UserDTO> queryUserDTOs(Collection<Long> ids);
 }
@@ -3,6 +3,10 @@ package com.hmdp.service;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.Collection;
+import java.util.List;
 
 /**
  * <p>
@@ -16,5 +20,23 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
-    void createVoucherOrder(VoucherOrder voucherOrder);
+    Result createVoucherOrder(VoucherOrder voucherOrder);
+
+    Result createVoucherOrderIdempotent(VoucherOrder voucherOrder);
+
+    List<VoucherOrder> createVoucherOrderBatch(List<VoucherOrder> orders);
+
+    DeferredResult<Result> queryOrderStatus(Long orderId, Long timeout);
+
+    /**
+     * 标记订单已支付，只能由验证过签名的支付回调调用，不对外暴露
+     * @return 订单未支付且属于该用户时返回true
+     */
+    boolean payVoucherOrder(Long orderId, Long userId);
+
+    Result cancelVoucherOrder(Long orderId);
+
+    List<VoucherOrder> cancelVoucherOrders(Collection<Long> orderIds);
+
+    List<VoucherOrder> cancelUnpaidOrders(Collection<Long> orderIds);
 }
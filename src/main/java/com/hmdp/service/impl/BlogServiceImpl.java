@@ -1,6 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
@@ -15,6 +14,7 @@ import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.HotKeyDetector;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
@@ -26,6 +26,7 @@ import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -45,6 +46,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private IFollowService followService;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
     @Override
     public Result queryHotBlog(Integer current) {
         // 根据用户查询
@@ -53,10 +56,12 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
+        // 批量查询用户
+        Map<Long, UserDTO> users = userService.queryUserDTOs(
+                records.stream().map(Blog::getUserId).collect(Collectors.toList()));
         records.forEach(blog -> {
             this.isBlogLiked(blog);
-            this.queryBlogUser(blog);
+            this.fillBlogUser(blog, users.get(blog.getUserId()));
         });
         return Result.ok(records);
     }
@@ -81,6 +86,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
         Long id = UserHolder.getUser().getId();
         String key = "blog:liked:" + blog.getId();
+        hotKeyDetector.record(key);
         Double score = stringRedisTemplate.opsForZSet().score(key, id.toString());
         blog.setIsLike(score!=null);
     }
@@ -126,13 +132,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
         //解析用户id
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
-        //根据用户id查询用户 需要加orderby
-        String join = StrUtil.join(",", ids);
-        List<UserDTO> userDTOS = userService.query().in("id",ids)
-                .last("ORDER BY FIELD(id," + join + ")").list()
-                .stream()
-                .map(user-> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        //根据用户id批量查询用户，结果按ids的顺序排列
+        List<UserDTO> userDTOS = new ArrayList<>(userService.queryUserDTOs(ids).values());
         //返回
         return Result.ok(userDTOS);
     }
@@ -192,9 +193,11 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         String join = StrUtil.join(",", ids);
         List<Blog> blogs = query().in("id", ids)
                 .last("ORDER BY FIELD(id," + join + ")").list();
+        Map<Long, UserDTO> users = userService.queryUserDTOs(
+                blogs.stream().map(Blog::getUserId).collect(Collectors.toList()));
         for (Blog blog : blogs) {
             //查询blog有关的用户
-            queryBlogUser(blog);
+            fillBlogUser(blog, users.get(blog.getUserId()));
             //查询blog是否被点赞
             isBlogLiked(blog);
         }
@@ -212,4 +215,12 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         blog.setName(user.getNickName());
         blog.setIcon(user.getIcon());
     }
+
+    private void fillBlogUser(Blog blog, UserDTO user){
+        if(user == null){
+            return;
+        }
+        blog.setName(user.getNickName());
+        blog.setIcon(user.getIcon());
+    }
 }
@@ -1,27 +1,29 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheBloomFilter;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
-import com.hmdp.utils.RedisData;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
-import java.util.concurrent.Executor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -33,11 +35,40 @@ import java.util.concurrent.TimeUnit;
  */
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
-    @Resource
-    private StringRedisTemplate stringRedisTemplate;
     //新建的工具类
     @Resource
     private CacheClient client;
+    @Resource
+    private CacheBloomFilter bloomFilter;
+    @Value("${hmdp.cache.warmup.batch-size:200}")
+    private int warmUpBatchSize;
+    @Value("${hmdp.cache.warmup.parallelism:4}")
+    private int warmUpParallelism;
+
+    @PostConstruct
+    private void registerBloomFilter() {
+        //启动时按主键分页把所有店铺id写入布隆过滤器
+        bloomFilter.register("shop", RedisConstants.CACHE_SHOP_KEY,
+                lastId -> queryShopIds(lastId, bloomFilter.getPageSize()));
+    }
+
+    /**
+     * 按主键分页查询店铺id
+     */
+    private List<Long> queryShopIds(Long lastId, int limit) {
+        return listObjs(new QueryWrapper<Shop>().select("id").gt("id", lastId).orderByAsc("id")
+                        .last("limit " + limit),
+                id -> ((Number) id).longValue());
+    }
+
+    @Override
+    public boolean save(Shop shop) {
+        boolean success = super.save(shop);
+        if (success) {
+            bloomFilter.put(RedisConstants.CACHE_SHOP_KEY, shop.getId());
+        }
+        return success;
+    }
     @Override
     public Result queryById(Long id) {
         //缓存穿透
@@ -53,165 +84,55 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         return Result.ok(shop);
     }
-    //利用互斥锁解决缓存击穿问题
-    private boolean tryLock(String key){
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key,"1",10,TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
-    }
-    private void unlock(String key){
-        stringRedisTemplate.delete(key);
-    }
     public void saveShop2Redis(Long id,Long expire){
         //1.查询店铺数据
         Shop shop = getById(id);
-        //2.封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expire));
-        //3.写入redis
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id,JSONUtil.toJsonStr(redisData));
-    }
-    public Shop queryWithPassThrough(Long id){
-        String key = "cache:shop:" + id;
-        //1.从redis查询商品缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在
-        if(StrUtil.isNotBlank(shopJson)){
-            //3.存在直接返回
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-        //判断命中的是否是空值
-        if(shopJson != null){
-            //返回错误信息
-            return null;
-        }
-        Shop shop = getById(id);
-        //4.不存在
-        if(shop == null){
-            //5.不存在返回错误
-            //将空值写入redis(缓存穿透)
-            stringRedisTemplate.opsForValue().set(key,"", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
-        }
-        //6.存在，将数据写到redis
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(shop), RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        //7.返回
-        return shop;
+        //2.封装逻辑过期时间并写入redis，格式与CacheClient读取的一致
+        client.setWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY + id, shop, expire, TimeUnit.SECONDS);
     }
-    public Shop queryWithMutex(Long id){
-        String key = "cache:shop:" + id;
-        //1.从redis查询商品缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在
-        if(StrUtil.isNotBlank(shopJson)){
-            //3.存在直接返回
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-        //判断命中的是否是空值
-        if(shopJson != null){
-            //返回错误信息
-            return null;
-        }
-        //实现缓存重建
-        //获取互斥锁
-        String lockKey = "lock:shop:" + id;
-        Shop shop = null;
+    /**
+     * 批量预热所有店铺的逻辑过期缓存：按主键分页，每页在线程池中并行查询并用一个pipeline写入，
+     * 逻辑过期时间在 expire ~ expire+spread 秒之间随机分布，避免同时过期
+     * @return 预热的店铺数
+     */
+    public int warmUpShops(Long expire, Long spread){
+        ExecutorService pool = Executors.newFixedThreadPool(warmUpParallelism);
         try {
-            boolean isLock = tryLock(lockKey);
-            //判断是否获取成功
-            if(!isLock){
-                Thread.sleep(50);
-                return queryWithMutex(id);
-            }
-            //获取锁成功再次检查缓存，没有则查数据库
-            //1.从redis查询商品缓存
-            shopJson = stringRedisTemplate.opsForValue().get(key);
-            //2.判断是否存在
-            if(StrUtil.isNotBlank(shopJson)){
-                //3.存在直接返回
-                shop = JSONUtil.toBean(shopJson, Shop.class);
-                return shop;
-            }
-            //判断命中的是否是空值
-            if(shopJson != null){
-                //返回错误信息
-                return null;
-            }
-            shop = getById(id);
-            //4.不存在
-            if(shop == null){
-                //5.不存在返回错误
-                //将空值写入redis(缓存穿透)
-                stringRedisTemplate.opsForValue().set(key,"", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-                return null;
+            List<CompletableFuture<Integer>> futures = new ArrayList<>();
+            Long lastId = 0L;
+            while (true) {
+                List<Long> ids = queryShopIds(lastId, warmUpBatchSize);
+                if (ids.isEmpty()) {
+                    break;
+                }
+                lastId = ids.get(ids.size() - 1);
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                    Map<Long, Shop> shops = listByIds(ids).stream()
+                            .collect(Collectors.toMap(Shop::getId, Function.identity()));
+                    client.setWithLogicalExpireBatch(RedisConstants.CACHE_SHOP_KEY, shops,
+                            expire, TimeUnit.SECONDS, TimeUnit.SECONDS.toMillis(spread));
+                    return shops.size();
+                }, pool));
             }
-            //6.存在，将数据写到redis
-            stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(shop), RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            return futures.stream().mapToInt(CompletableFuture::join).sum();
         } finally {
-            //释放锁
-            unlock(lockKey);
+            pool.shutdown();
         }
-        //7.返回
-        return shop;
     }
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    public Shop queryWithPassThrough(Long id){
+        return client.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, id,
+                Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+    }
+    public Shop queryWithMutex(Long id){
+        //本机内合并并发请求，跨节点用互斥锁，等待重建完成的通知而不是睡眠后递归重试
+        return client.queryWithMutex(RedisConstants.CACHE_SHOP_KEY, id,
+                Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+    }
     //这个方法需要将key提前加入缓存，不需要检查缓存穿透问题，如果redis查不到key说明，不在活动范围内
     //直接返回空就可以，不用查数据库
     public Shop queryWithLogicalExpire(Long id){
-        String key = "cache:shop:" + id;
-        //1.从redis查询商品缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在
-        if(StrUtil.isBlank(shopJson)){
-            //3.不存在直接返回
-            return null;
-        }
-        //命中需要判断过期时间，反序列化为对象
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        Shop shop = JSONUtil.toBean((JSONObject) redisData.getData(),Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        //判断是否过期
-        if(expireTime.isAfter(LocalDateTime.now())) {
-            //未过期直接返回
-            return shop;
-        }
-        //已经过期缓存重建
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        //获取mutex
-        boolean tryLock = tryLock(lockKey);
-        //判断是否获取成功
-        if(tryLock) {
-            //获取成功 再次检查缓存
-            //1.从redis查询商品缓存
-            shopJson = stringRedisTemplate.opsForValue().get(key);
-            //2.判断是否存在
-            if(StrUtil.isBlank(shopJson)){
-                //3.不存在直接返回
-                return null;
-            }
-            //命中需要判断过期时间，反序列化为对象
-            redisData = JSONUtil.toBean(shopJson, RedisData.class);
-            shop = JSONUtil.toBean((JSONObject) redisData.getData(),Shop.class);
-            expireTime = redisData.getExpireTime();
-            //判断是否过期
-            if(expireTime.isAfter(LocalDateTime.now())) {
-                //未过期直接返回
-                return shop;
-            }
-            CACHE_REBUILD_EXECUTOR.submit(()->{
-                try {
-                    saveShop2Redis(id,30L);
-                } finally {
-                    unlock(lockKey);
-                }
-            });
-        }
-        //返回过期商铺信息
-        return shop;
+        return client.queryWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, id,
+                Shop.class, this::getById, 30L, TimeUnit.SECONDS);
     }
     @Override
     @Transactional
@@ -222,8 +143,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         //1.更新数据库
         updateById(shop);
-        //2.删除缓存
-        stringRedisTemplate.delete("cache:shop:" + id);
+        //2.删除缓存，并通知其他节点清除进程内缓存
+        client.delete(RedisConstants.CACHE_SHOP_KEY + id);
         return Result.ok();
     }
 }
@@ -12,6 +12,8 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.HotKeyDetector;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.SystemConstants;
@@ -26,11 +28,13 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -45,6 +49,10 @@ import java.util.concurrent.TimeUnit;
 public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IUserService {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
     @Override
     public Result sendCode(String phone, HttpSession session) {
         //1.校验手机号
@@ -110,6 +118,8 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         }
         UserHolder.removeUser();
         stringRedisTemplate.delete(RedisConstants.LOGIN_USER_KEY+ token);
+        //本机固定的热点token一并移除，其他节点最多在pin-ttl内仍然可用
+        hotKeyDetector.unpin(RedisConstants.LOGIN_USER_KEY+ token);
         return Result.ok();
     }
 
@@ -174,4 +184,13 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         save(user);
         return user;
     }
+
+    @Override
+    public Map<Long, UserDTO> queryUserDTOs(Collection<Long> ids) {
+        //一次MGET查缓存，未命中的用户一次listByIds查数据库
+        return cacheClient.queryBatch(RedisConstants.CACHE_USER_KEY, ids, UserDTO.class,
+                misses -> listByIds(misses).stream()
+                        .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))),
+                RedisConstants.CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
 }
@@ -1,17 +1,23 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.OrderStatusDTO;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.User;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
-import com.hmdp.rabbitmq.MQSender;
-import com.hmdp.rabbitmq.MQreceiver;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.SeckillOrderDeadline;
+import com.hmdp.utils.SeckillOrderQueue;
+import com.hmdp.utils.SeckillOrderStatus;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockRouter;
+import com.hmdp.utils.SeckillStockWarmer;
 import com.hmdp.utils.SimpleRedisLock;
 import com.hmdp.utils.UserHolder;
 import org.redisson.api.RLock;
@@ -19,20 +25,32 @@ import org.redisson.api.RedissonClient;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
 import org.springframework.aop.framework.AopContext;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -44,6 +62,10 @@ import java.util.concurrent.Executors;
  */
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
+    private static final int STATUS_UNPAID = 1;
+    private static final int STATUS_PAID = 2;
+    private static final int STATUS_CANCELED = 4;
+    private static final String UNIQUE_INDEX = "uk_user_voucher";
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
@@ -51,16 +73,31 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
-    private MQSender mqSender;
-    @Resource
-    private MQreceiver mQreceiver;
+    private SeckillOrderQueue orderQueue;
     @Resource
     private RedissonClient redissonClient;
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+    @Resource
+    private SeckillStockRouter stockRouter;
+    @Resource
+    private SeckillOrderStatus orderStatus;
+    @Resource
+    private SeckillAdmission admission;
+    @Resource
+    private SeckillStockWarmer stockWarmer;
+    @Resource
+    private SeckillOrderDeadline orderDeadline;
+    //落库方式 locked:分布式锁+查询判重; idempotent:依赖唯一索引insert ignore,不加锁
+    @Value("${hmdp.seckill.consumer.persist:locked}")
+    private String persistMode;
+    @PostConstruct
+    private void checkPersistMode() {
+        //没有唯一索引时insert ignore不会忽略任何订单,重复订单会直接落库
+        if (isIdempotent() && getBaseMapper().countIndex(UNIQUE_INDEX) == 0) {
+            throw new IllegalStateException("persist=idempotent需要唯一索引" + UNIQUE_INDEX
+                    + "，请先执行 db/migration/V1__voucher_order_unique_index.sql");
+        }
     }
 //    private final ArrayBlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<VoucherOrder>(1024*1024);
  //   private final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
@@ -91,54 +128,142 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //    }
 
     public void handleVoucherOrder(VoucherOrder order) {
-        //一人一单
-        Long userId = order.getUserId();
-        //只锁同一个id,从常量池找。userId.toString().intern()
-        //先获取锁事务提交在释放锁
-        //创建锁对象
-        //SimpleRedisLock lock = new SimpleRedisLock(stringRedisTemplate, "order:" + userId);
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        boolean isLock = lock.tryLock();
-        if(!isLock) {//理论上不需要再添加redis锁了
-            log.error("不允许重复下单");
-            return ;
+        handleVoucherOrder(order, false);
+    }
+
+    /**
+     * @param serialized 调用方保证同一用户的订单只由一个线程顺序处理(分区监听器)，可以不加用户锁
+     */
+    public void handleVoucherOrder(VoucherOrder order, boolean serialized) {
+        //新的线程找不到原来的代理,从当前调用链中获取
+        IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
+        Result result;
+        if (isIdempotent()) {
+            //lua脚本已经保证一人一单,重复消息由唯一索引兜底,不需要加锁
+            result = proxy.createVoucherOrderIdempotent(order);
+        } else if (serialized) {
+            //同一用户的消息只会由所在分区的一个消费者顺序处理,不需要加锁
+            result = proxy.createVoucherOrder(order);
+        } else {
+            //一人一单
+            Long userId = order.getUserId();
+            //只锁同一个id,从常量池找。userId.toString().intern()
+            //先获取锁事务提交在释放锁
+            //创建锁对象
+            //SimpleRedisLock lock = new SimpleRedisLock(stringRedisTemplate, scriptRegistry, "order:" + userId);
+            RLock lock = redissonClient.getLock("lock:order:" + userId);
+            boolean isLock = lock.tryLock();
+            if(!isLock) {//理论上不需要再添加redis锁了
+                log.error("不允许重复下单");
+                orderStatus.failed(order.getId(), "不允许重复下单");
+                return ;
+            }
+            try {
+                result = proxy.createVoucherOrder(order);
+            }finally {
+                lock.unlock();
+            }
         }
+        //事务提交后再写入处理结果
+        if (result.getSuccess()) {
+            orderDeadline.schedule(Collections.singletonList(order.getId()));
+            orderStatus.created(order.getId());
+        } else {
+            orderStatus.failed(order.getId(), result.getErrorMsg());
+        }
+    }
+
+    public void handleVoucherOrderBatch(List<VoucherOrder> orders) {
+        IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
+        List<VoucherOrder> persisted;
         try {
-            //新的线程找不到原来的代理
-            proxy.createVoucherOrder(order);
-            //}
-        }finally {
-            lock.unlock();
+            persisted = proxy.createVoucherOrderBatch(orders);
+        } catch (StockMismatchException e) {
+            //整批已回滚,逐条处理找出扣不到库存的订单
+            log.error(e.getMessage());
+            for (VoucherOrder order : orders) {
+                handleVoucherOrder(order);
+            }
+            return;
+        }
+        //事务提交后再写入处理结果
+        Set<Long> createdIds = persisted.stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        Map<Long, String> failed = new HashMap<>();
+        for (VoucherOrder order : orders) {
+            if (!createdIds.contains(order.getId())) {
+                failed.put(order.getId(), "重复下单或库存不足");
+            }
         }
+        orderDeadline.schedule(createdIds);
+        orderStatus.finish(createdIds, failed);
     }
-    private IVoucherOrderService proxy;
     @Override
     public Result seckillVoucher(Long voucherId) {
+        //redis中的库存还没有预热完成
+        if (!stockWarmer.isReady()) {
+            return Result.fail("系统繁忙，请稍后重试");
+        }
+        //本地缓存的时间窗口判断,明显不在活动时间内的请求不访问redis
+        int w = stockRouter.precheck(voucherId);
+        if (w != SeckillStockRouter.OK) {
+            return Result.fail(windowMessage(w));
+        }
+        //本地已标记售罄,直接拒绝
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        //按券限流,超出的请求不访问库存
+        if (!admission.tryAdmit(voucherId)) {
+            return Result.fail("系统繁忙，请稍后重试");
+        }
         //获取用户
         Long userId = UserHolder.getUser().getId();
-        //执行lua脚本
-        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT, Collections.emptyList(),
-                voucherId.toString(), userId.toString());
+        //stream队列由lua脚本在扣库存的同时入队,需要先生成订单id
+        String streamKey = orderQueue.streamKey();
+        Long orderId = streamKey == null ? null : redisIdWorker.nextId("order");
+        //执行lua脚本,分片模式下可能会到多个分片扣库存
+        int r = stockRouter.acquire(voucherId, userId, orderId, streamKey);
         //判断结果是否为0
-        int r = result.intValue();
-        if(r != 0) {
+        if(r != SeckillStockRouter.OK) {
             //不为0，没资格
+            if (r == SeckillStockRouter.NO_STOCK) {
+                soldOutRegistry.markSoldOut(voucherId);
+            }
+            if (r == SeckillStockRouter.NOT_WARMED) {
+                //库存key丢失,按需预热这张券
+                stockWarmer.warmAsync(voucherId);
+                return Result.fail("系统繁忙，请稍后重试");
+            }
+            if (r == SeckillStockRouter.NOT_STARTED || r == SeckillStockRouter.ENDED) {
+                return Result.fail(windowMessage(r));
+            }
+            if (r == SeckillStockRouter.BUSY) {
+                //同一用户的上一个请求还在其他分片扣库存
+                return Result.fail("正在处理中，请稍后重试");
+            }
             return Result.fail(r==1?"库存不足":"不能重复下单");
         }
         //为0有资格，把下单信息保存到阻塞队列TODO：改成mq
         VoucherOrder voucherOrder = new VoucherOrder();
-        long orderId = redisIdWorker.nextId("order");
+        if (orderId == null) {
+            orderId = redisIdWorker.nextId("order");
+        }
         voucherOrder.setId(orderId);
         voucherOrder.setUserId(userId);
         voucherOrder.setVoucherId(voucherId);
+        //记录排队状态,客户端可以轮询处理结果
+        orderStatus.pending(orderId, userId, voucherId);
         //orderTasks.add(voucherOrder);
-        //mq发消息
-        mqSender.sendSeckillMessage(JSONUtil.toJsonStr(voucherOrder));
-        //获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
+        //mq发消息,stream队列已经在lua脚本中入队
+        if (streamKey == null) {
+            orderQueue.send(voucherOrder);
+        }
         //返回订单id
         return Result.ok(orderId);
     }
+    private static String windowMessage(int r) {
+        return r == SeckillStockRouter.NOT_STARTED ? "秒杀尚未开始" : "秒杀已经结束";
+    }
 //    @Override
 //    public Result seckillVoucher(Long voucherId) {
 //        //1.查询优惠券
@@ -163,7 +288,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        //只锁同一个id,从常量池找。userId.toString().intern()
 //        //先获取锁事务提交在释放锁
 //        //创建锁对象
-//        //SimpleRedisLock lock = new SimpleRedisLock(stringRedisTemplate, "order:" + userId);
+//        //SimpleRedisLock lock = new SimpleRedisLock(stringRedisTemplate, scriptRegistry, "order:" + userId);
 //        RLock lock = redissonClient.getLock("lock:order:" + userId);
 //        boolean isLock = lock.tryLock();
 //        if(!isLock) {
@@ -180,15 +305,120 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        }
 //    }
 
+    @Override
+    public DeferredResult<Result> queryOrderStatus(Long orderId, Long timeout) {
+        Long userId = UserHolder.getUser().getId();
+        DeferredResult<Result> deferred = new DeferredResult<>(Math.max(timeout, 1L));
+        //先注册回调再查状态,避免查询和通知之间的结果丢失
+        Consumer<OrderStatusDTO> callback = status -> deferred.setResult(Result.ok(status));
+        boolean wait = timeout > 0;
+        if (wait) {
+            orderStatus.await(orderId, callback);
+        }
+        OrderStatusDTO status = orderStatus.get(orderId, userId);
+        if (status == null) {
+            //状态已过期,回查数据库
+            VoucherOrder order = getById(orderId);
+            status = order != null && userId.equals(order.getUserId())
+                    ? new OrderStatusDTO(orderId, SeckillOrderStatus.CREATED, null) : null;
+        }
+        if (!wait || status == null || !SeckillOrderStatus.PENDING.equals(status.getState())) {
+            orderStatus.cancelAwait(orderId, callback);
+            deferred.setResult(status == null ? Result.fail("订单不存在") : Result.ok(status));
+            return deferred;
+        }
+        //超时仍在排队,返回当前状态
+        OrderStatusDTO last = status;
+        deferred.onTimeout(() -> {
+            orderStatus.cancelAwait(orderId, callback);
+            OrderStatusDTO current = orderStatus.get(orderId, userId);
+            deferred.setResult(Result.ok(current == null ? last : current));
+        });
+        deferred.onCompletion(() -> orderStatus.cancelAwait(orderId, callback));
+        return deferred;
+    }
+
+    @Override
+    public boolean payVoucherOrder(Long orderId, Long userId) {
+        //只有未支付的订单可以支付,和超时取消互斥
+        boolean success = update()
+                .set("status", STATUS_PAID)
+                .set("pay_time", LocalDateTime.now())
+                .eq("id", orderId)
+                .eq("user_id", userId)
+                .eq("status", STATUS_UNPAID)
+                .update();
+        if (success) {
+            orderDeadline.remove(Collections.singletonList(orderId));
+        }
+        return success;
+    }
+
+    @Override
+    public Result cancelVoucherOrder(Long orderId) {
+        Long userId = UserHolder.getUser().getId();
+        VoucherOrder order = getById(orderId);
+        if (order == null || !userId.equals(order.getUserId())) {
+            return Result.fail("订单不存在");
+        }
+        IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
+        if (proxy.cancelVoucherOrders(Collections.singletonList(orderId)).isEmpty()) {
+            return Result.fail("订单已支付或已取消");
+        }
+        return Result.ok(orderId);
+    }
+
+    @Override
+    public List<VoucherOrder> cancelVoucherOrders(Collection<Long> orderIds) {
+        IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
+        List<VoucherOrder> canceled = proxy.cancelUnpaidOrders(orderIds);
+        //事务提交后再归还redis中的库存和资格,中途失败时由库存核对任务修复
+        stockRouter.releaseBatch(canceled);
+        canceled.stream().map(VoucherOrder::getVoucherId).distinct().forEach(soldOutRegistry::clear);
+        orderDeadline.remove(orderIds);
+        return canceled;
+    }
+
+    @Override
+    @Transactional
+    public List<VoucherOrder> cancelUnpaidOrders(Collection<Long> orderIds) {
+        if (orderIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        //锁住仍未支付的订单,并发的支付或其他节点的取消会等待本事务
+        List<VoucherOrder> orders = query().select("id", "user_id", "voucher_id")
+                .in("id", orderIds)
+                .eq("status", STATUS_UNPAID)
+                .last("FOR UPDATE")
+                .list();
+        if (orders.isEmpty()) {
+            return orders;
+        }
+        //取消后active置为NULL,不再占用一人一单的唯一索引
+        update().set("status", STATUS_CANCELED)
+                .setSql("active = NULL")
+                .in("id", orders.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                .update();
+        //按券聚合归还库存
+        orders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()))
+                .forEach((voucherId, k) -> seckillVoucherService.update()
+                        .setSql("stock = stock + " + k)
+                        .eq("voucher_id", voucherId)
+                        .update());
+        return orders;
+    }
+
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
+    public Result createVoucherOrder(VoucherOrder voucherOrder) {
         Long userId = voucherOrder.getUserId();
         //先查询订单
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
+        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId())
+                .ne("status", STATUS_CANCELED).count();
         //判断是否存在
         if (count > 0) {
             //用户已经购买过了
-            return ;
+            return Result.fail("你已经买过");
         }
         //5.扣减库存(解决了超卖)
         boolean success = seckillVoucherService.update()
@@ -197,10 +427,132 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                 .gt("stock", 0)
                 .update();
         if (!success) {
-            return;
+            return Result.fail("库存不足");
         }
         save(voucherOrder);
+        return Result.ok(voucherOrder.getId());
+    }
+
+    private boolean isIdempotent() {
+        return "idempotent".equals(persistMode);
     }
+
+    @Override
+    @Transactional
+    public Result createVoucherOrderIdempotent(VoucherOrder voucherOrder) {
+        //先插入订单,唯一索引冲突时影响行数为0
+        if (getBaseMapper().insertIgnore(voucherOrder) == 0) {
+            VoucherOrder existed = getById(voucherOrder.getId());
+            if (existed != null) {
+                //重投的消息,订单已经落库
+                return Result.ok(voucherOrder.getId());
+            }
+            return Result.fail("你已经买过");
+        }
+        //扣减库存,失败时回滚已插入的订单
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock - 1")
+                .eq("voucher_id", voucherOrder.getVoucherId())
+                .gt("stock", 0)
+                .update();
+        if (!success) {
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return Result.fail("库存不足");
+        }
+        return Result.ok(voucherOrder.getId());
+    }
+
+    @Override
+    @Transactional
+    public List<VoucherOrder> createVoucherOrderBatch(List<VoucherOrder> orders) {
+        if (isIdempotent()) {
+            return createVoucherOrderBatchIdempotent(orders);
+        }
+        //同一批次内按(用户,券)去重,MQ重投可能带来重复消息
+        Map<String, VoucherOrder> pending = new LinkedHashMap<>();
+        for (VoucherOrder order : orders) {
+            pending.putIfAbsent(order.getUserId() + ":" + order.getVoucherId(), order);
+        }
+        //一次查询过滤掉已经下过单的用户
+        Set<Long> userIds = pending.values().stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+        Set<Long> voucherIds = pending.values().stream().map(VoucherOrder::getVoucherId).collect(Collectors.toSet());
+        List<VoucherOrder> existed = query().select("id", "user_id", "voucher_id")
+                .in("user_id", userIds).in("voucher_id", voucherIds)
+                .ne("status", STATUS_CANCELED).list();
+        List<VoucherOrder> persisted = new ArrayList<>(pending.size());
+        for (VoucherOrder order : existed) {
+            VoucherOrder dup = pending.remove(order.getUserId() + ":" + order.getVoucherId());
+            if (dup != null && dup.getId().equals(order.getId())) {
+                //重投的消息,订单已经落库
+                persisted.add(dup);
+            }
+        }
+        if (pending.isEmpty()) {
+            return persisted;
+        }
+        //按券聚合扣减库存,每张券只执行一次 stock = stock - k
+        Map<Long, List<VoucherOrder>> byVoucher = pending.values().stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        List<VoucherOrder> toSave = new ArrayList<>(pending.size());
+        byVoucher.forEach((voucherId, list) -> {
+            int k = list.size();
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + k)
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", k)
+                    .update();
+            if (!success) {
+                //数据库与redis不一致,回滚整批,由调用方逐条处理,库存够的订单仍然可以落库
+                throw new StockMismatchException(voucherId, k);
+            }
+            toSave.addAll(list);
+        });
+        if (!toSave.isEmpty()) {
+            //多行insert一次写入
+            getBaseMapper().insertBatch(toSave);
+            persisted.addAll(toSave);
+        }
+        return persisted;
+    }
+    private List<VoucherOrder> createVoucherOrderBatchIdempotent(List<VoucherOrder> orders) {
+        List<VoucherOrder> persisted = new ArrayList<>(orders.size());
+        Map<Long, List<VoucherOrder>> byVoucher = orders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        byVoucher.forEach((voucherId, list) -> {
+            //insert ignore的影响行数就是新写入的订单数,重复和重投的消息都被忽略
+            int k = getBaseMapper().insertIgnoreBatch(list);
+            List<Long> ids = list.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+            if (k > 0) {
+                boolean success = seckillVoucherService.update()
+                        .setSql("stock = stock - " + k)
+                        .eq("voucher_id", voucherId)
+                        .ge("stock", k)
+                        .update();
+                if (!success) {
+                    //数据库与redis不一致,回滚整批,由调用方逐条处理
+                    throw new StockMismatchException(voucherId, k);
+                }
+            }
+            if (k == list.size()) {
+                persisted.addAll(list);
+                return;
+            }
+            //有订单被忽略,按订单id确认哪些已经落库
+            Set<Long> existed = listByIds(ids).stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+            list.stream().filter(o -> existed.contains(o.getId())).forEach(persisted::add);
+        });
+        return persisted;
+    }
+
+    /**
+     * 按券聚合扣减库存失败,数据库库存少于redis放行的订单数
+     */
+    private static class StockMismatchException extends RuntimeException {
+        StockMismatchException(Long voucherId, int count) {
+            super("批量扣减库存失败, voucherId=" + voucherId + ", count=" + count);
+        }
+    }
+
 //    @Transactional
 //    public Result createVoucherOrder(Long voucherId) {
 //        Long userId = UserHolder.getUser().getId();
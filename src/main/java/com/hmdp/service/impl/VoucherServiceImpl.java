@@ -8,6 +8,7 @@ import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillStockRouter;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -30,6 +31,8 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillStockRouter stockRouter;
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -46,12 +49,17 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         // 保存秒杀信息
         SeckillVoucher seckillVoucher = new SeckillVoucher();
         seckillVoucher.setVoucherId(voucher.getId());
+        //热点券可以拆成多个分片,分片数和秒杀信息一起保存
+        int shards = Math.max(1, voucher.getStockShards() == null ? stockRouter.getDefaultShards() : voucher.getStockShards());
         seckillVoucher.setStock(voucher.getStock());
+        seckillVoucher.setStockShards(shards);
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
         //保存秒杀库存到redis
-        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId(),voucher.getStock().toString());
+        stockRouter.initStock(voucher.getId(), voucher.getStock(), shards);
+        //保存秒杀时间窗口到redis,由lua脚本判断是否在活动时间内
+        stockRouter.initWindow(voucher.getId(), voucher.getBeginTime(), voucher.getEndTime(), shards);
     }
 
 
@@ -0,0 +1,361 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 紧凑的二进制格式，用于Shop、Blog、UserDTO这类只有简单字段的实体：
+ * 格式版本(1字节) + 标记(1字节) + [逻辑过期时间] + 字段结构指纹(4字节) + 按字段名排序的每个字段(类型1字节 + 值)。
+ * 整数用zigzag变长编码，时间存秒数和纳秒数。
+ * 指纹由字段名和字段类型计算，类的字段变化后旧数据的指纹对不上，解码返回null，按未命中重新加载。
+ * 第一个字节不是格式版本的数据按json解码，切换格式时redis中已有的json数据仍然可以读取；
+ * 不是实体的类型(字符串、数字、集合等)直接使用json
+ */
+public class BinaryCacheValueCodec implements CacheValueCodec {
+    //json的第一个字节不会是这个值
+    private static final byte FORMAT_VERSION = 1;
+    private static final byte FLAG_EXPIRE = 1;
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_LONG = 1;
+    private static final byte TAG_INT = 2;
+    private static final byte TAG_DOUBLE = 3;
+    private static final byte TAG_FLOAT = 4;
+    private static final byte TAG_STRING = 5;
+    private static final byte TAG_TRUE = 6;
+    private static final byte TAG_FALSE = 7;
+    private static final byte TAG_DATE_TIME = 8;
+    //其他类型的字段存json字符串
+    private static final byte TAG_JSON = 9;
+
+    private final JsonCacheValueCodec json = new JsonCacheValueCodec();
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    @Override
+    public byte[] encode(Object value) {
+        if (value == null || !isEntity(value.getClass())) {
+            return json.encode(value);
+        }
+        Writer out = new Writer();
+        out.write(FORMAT_VERSION);
+        out.write((byte) 0);
+        writeEntity(out, value);
+        return out.toByteArray();
+    }
+
+    @Override
+    public byte[] encodeWithExpire(RedisData redisData) {
+        Object value = redisData.getData();
+        if (value == null || !isEntity(value.getClass())) {
+            return json.encodeWithExpire(redisData);
+        }
+        Writer out = new Writer();
+        out.write(FORMAT_VERSION);
+        out.write(FLAG_EXPIRE);
+        writeDateTime(out, redisData.getExpireTime());
+        writeEntity(out, value);
+        return out.toByteArray();
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        if (!isBinary(bytes)) {
+            return json.decode(bytes, type);
+        }
+        Reader in = new Reader(bytes);
+        in.pos = 1;
+        if (in.read() != 0) {
+            return null;
+        }
+        return readEntity(in, type);
+    }
+
+    @Override
+    public <T> RedisData decodeWithExpire(byte[] bytes, Class<T> type) {
+        if (!isBinary(bytes)) {
+            return json.decodeWithExpire(bytes, type);
+        }
+        Reader in = new Reader(bytes);
+        in.pos = 1;
+        if (in.read() != FLAG_EXPIRE) {
+            return null;
+        }
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(readDateTime(in));
+        T data = readEntity(in, type);
+        if (data == null) {
+            return null;
+        }
+        redisData.setData(data);
+        return redisData;
+    }
+
+    /**
+     * @return 是否是这个格式写入的数据，json格式的第一个字节不会是格式版本
+     */
+    static boolean isBinary(byte[] bytes) {
+        return bytes.length > 0 && bytes[0] == FORMAT_VERSION;
+    }
+
+    private static boolean isEntity(Class<?> type) {
+        return !type.isPrimitive() && !type.isArray() && !type.isEnum()
+                && !type.getName().startsWith("java.")
+                && !Collection.class.isAssignableFrom(type) && !Map.class.isAssignableFrom(type);
+    }
+
+    private Schema schema(Class<?> type) {
+        return schemas.computeIfAbsent(type, Schema::new);
+    }
+
+    private void writeEntity(Writer out, Object value) {
+        Schema schema = schema(value.getClass());
+        out.writeInt(schema.fingerprint);
+        try {
+            for (Field field : schema.fields) {
+                writeValue(out, field.get(value));
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private <T> T readEntity(Reader in, Class<T> type) {
+        if (!isEntity(type)) {
+            return null;
+        }
+        Schema schema = schema(type);
+        if (in.readInt() != schema.fingerprint) {
+            //类的字段已经变化
+            return null;
+        }
+        try {
+            T value = type.cast(schema.constructor.newInstance());
+            for (Field field : schema.fields) {
+                Object fieldValue = readValue(in, field.getType());
+                if (fieldValue != null || !field.getType().isPrimitive()) {
+                    field.set(value, fieldValue);
+                }
+            }
+            return value;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static void writeValue(Writer out, Object value) {
+        if (value == null) {
+            out.write(TAG_NULL);
+        } else if (value instanceof Long) {
+            out.write(TAG_LONG);
+            out.writeVarLong((Long) value);
+        } else if (value instanceof Integer) {
+            out.write(TAG_INT);
+            out.writeVarLong((Integer) value);
+        } else if (value instanceof Double) {
+            out.write(TAG_DOUBLE);
+            out.writeLong(Double.doubleToRawLongBits((Double) value));
+        } else if (value instanceof Float) {
+            out.write(TAG_FLOAT);
+            out.writeInt(Float.floatToRawIntBits((Float) value));
+        } else if (value instanceof String) {
+            out.write(TAG_STRING);
+            out.writeString((String) value);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof LocalDateTime) {
+            out.write(TAG_DATE_TIME);
+            writeDateTime(out, (LocalDateTime) value);
+        } else {
+            out.write(TAG_JSON);
+            out.writeString(JSONUtil.toJsonStr(value));
+        }
+    }
+
+    private static Object readValue(Reader in, Class<?> type) {
+        byte tag = in.read();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_LONG:
+                return in.readVarLong();
+            case TAG_INT:
+                return (int) in.readVarLong();
+            case TAG_DOUBLE:
+                return Double.longBitsToDouble(in.readLong());
+            case TAG_FLOAT:
+                return Float.intBitsToFloat(in.readInt());
+            case TAG_STRING:
+                return in.readString();
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_DATE_TIME:
+                return readDateTime(in);
+            case TAG_JSON:
+                return JSONUtil.toBean(in.readString(), type);
+            default:
+                throw new IllegalArgumentException("未知的字段类型:" + tag);
+        }
+    }
+
+    private static void writeDateTime(Writer out, LocalDateTime time) {
+        out.writeVarLong(time.toEpochSecond(ZoneOffset.UTC));
+        out.writeVarLong(time.getNano());
+    }
+
+    private static LocalDateTime readDateTime(Reader in) {
+        long second = in.readVarLong();
+        return LocalDateTime.ofEpochSecond(second, (int) in.readVarLong(), ZoneOffset.UTC);
+    }
+
+    private static class Schema {
+        private final Field[] fields;
+        private final int fingerprint;
+        private final Constructor<?> constructor;
+
+        private Schema(Class<?> type) {
+            List<Field> list = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    list.add(field);
+                }
+            }
+            //按字段名排序，不依赖反射返回字段的顺序
+            fields = list.toArray(new Field[0]);
+            Arrays.sort(fields, Comparator.comparing(Field::getName));
+            StringBuilder sb = new StringBuilder(type.getName());
+            for (Field field : fields) {
+                sb.append(';').append(field.getName()).append(':').append(field.getType().getName());
+            }
+            fingerprint = sb.toString().hashCode();
+            try {
+                constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException(type.getName() + "没有无参构造方法", e);
+            }
+        }
+    }
+
+    private static class Writer {
+        private byte[] buf = new byte[128];
+        private int size;
+
+        private void ensure(int n) {
+            if (size + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + n));
+            }
+        }
+
+        private void write(byte b) {
+            ensure(1);
+            buf[size++] = b;
+        }
+
+        private void writeInt(int v) {
+            ensure(4);
+            for (int i = 3; i >= 0; i--) {
+                buf[size++] = (byte) (v >>> (i * 8));
+            }
+        }
+
+        private void writeLong(long v) {
+            ensure(8);
+            for (int i = 7; i >= 0; i--) {
+                buf[size++] = (byte) (v >>> (i * 8));
+            }
+        }
+
+        /**
+         * zigzag变长编码，绝对值小的数字占用字节少
+         */
+        private void writeVarLong(long v) {
+            long z = (v << 1) ^ (v >> 63);
+            ensure(10);
+            while ((z & ~0x7FL) != 0) {
+                buf[size++] = (byte) ((z & 0x7F) | 0x80);
+                z >>>= 7;
+            }
+            buf[size++] = (byte) z;
+        }
+
+        private void writeString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, size, bytes.length);
+            size += bytes.length;
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+    }
+
+    private static class Reader {
+        private final byte[] buf;
+        private int pos;
+
+        private Reader(byte[] buf) {
+            this.buf = buf;
+        }
+
+        private byte read() {
+            return buf[pos++];
+        }
+
+        private int readInt() {
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        private long readLong() {
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        private long readVarLong() {
+            long z = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf[pos++];
+                z |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return (z >>> 1) ^ -(z & 1);
+        }
+
+        private String readString() {
+            int length = (int) readVarLong();
+            String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.lang.hash.MurmurHash;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+/**
+ * 防缓存穿透的布隆过滤器，每种实体一个，按缓存key前缀查找。
+ * 启动时按主键分页构建，与redis中的位图按位或合并后再读回本地，之后本地判断不访问redis；
+ * 新增数据时同时写本地、redis位图，并通过发布订阅通知其他节点，定时从redis合并一次防止漏掉通知。
+ * 首次构建完成之前和没有注册过滤器的前缀一律返回可能存在
+ */
+@Slf4j
+@Component
+public class CacheBloomFilter implements ApplicationRunner, MessageListener {
+    private static final String SEPARATOR = ":";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    //构建时临时key的后缀，避免多个节点同时构建时互相覆盖
+    private final String owner = UUID.randomUUID().toString(true);
+    private final boolean enabled;
+    private final long expectedInsertions;
+    private final double fpp;
+    private final int pageSize;
+    //缓存key前缀 -> 过滤器
+    private final Map<String, Filter> filters = new ConcurrentHashMap<>();
+
+    public CacheBloomFilter(StringRedisTemplate stringRedisTemplate,
+                            RedisMessageListenerContainer container,
+                            @Value("${hmdp.cache.bloom.enabled:true}") boolean enabled,
+                            @Value("${hmdp.cache.bloom.expected-insertions:1000000}") long expectedInsertions,
+                            @Value("${hmdp.cache.bloom.fpp:0.01}") double fpp,
+                            @Value("${hmdp.cache.bloom.page-size:1000}") int pageSize) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.enabled = enabled;
+        this.expectedInsertions = expectedInsertions;
+        this.fpp = fpp;
+        this.pageSize = pageSize;
+        if (enabled) {
+            container.addMessageListener(this, new ChannelTopic(RedisConstants.BLOOM_ADD_CHANNEL));
+        }
+    }
+
+    /**
+     * 注册一种实体的过滤器
+     * @param name 实体名，redis位图的key为 bloom:name
+     * @param keyPrefix 这种实体的缓存key前缀
+     * @param idLoader 按主键分页读取id：参数为上一页最大的id，返回大于它的最多pageSize个id，按id升序
+     */
+    public void register(String name, String keyPrefix, Function<Long, List<Long>> idLoader) {
+        if (enabled) {
+            filters.put(keyPrefix, new Filter(name, idLoader));
+        }
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return false表示一定不存在
+     */
+    public boolean mightContain(String keyPrefix, Object id) {
+        Filter filter = filters.get(keyPrefix);
+        return filter == null || !filter.ready || filter.mightContain(String.valueOf(id));
+    }
+
+    /**
+     * 新增数据后调用
+     */
+    public void put(String keyPrefix, Object id) {
+        Filter filter = filters.get(keyPrefix);
+        if (filter == null) {
+            return;
+        }
+        long[] offsets = filter.offsets(String.valueOf(id));
+        filter.setLocal(offsets);
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                byte[] key = filter.redisKey();
+                for (long offset : offsets) {
+                    connection.setBit(key, offset, true);
+                }
+                return null;
+            });
+            stringRedisTemplate.convertAndSend(RedisConstants.BLOOM_ADD_CHANNEL, keyPrefix + SEPARATOR + id);
+        } catch (RuntimeException e) {
+            //本机已经写入，其他节点在下次启动构建时才能看到
+            log.error("布隆过滤器{}写入redis失败, id:{}", filter.name, id, e);
+        }
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        for (Filter filter : filters.values()) {
+            try {
+                filter.build();
+            } catch (RuntimeException e) {
+                //构建失败时放行所有请求，由空值缓存兜底
+                log.error("构建布隆过滤器{}失败", filter.name, e);
+            }
+        }
+    }
+
+    /**
+     * 定时从redis合并其他节点写入的位，防止漏掉发布订阅消息
+     */
+    @Scheduled(initialDelayString = "${hmdp.cache.bloom.reload-interval:60000}",
+            fixedDelayString = "${hmdp.cache.bloom.reload-interval:60000}")
+    public void reload() {
+        for (Filter filter : filters.values()) {
+            if (!filter.ready) {
+                continue;
+            }
+            try {
+                filter.mergeFromRedis();
+            } catch (RuntimeException e) {
+                log.error("从redis合并布隆过滤器{}失败", filter.name, e);
+            }
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int index = body.lastIndexOf(SEPARATOR);
+        Filter filter = index < 0 ? null : filters.get(body.substring(0, index));
+        if (filter == null) {
+            log.error("布隆过滤器消息格式错误:{}", body);
+            return;
+        }
+        filter.setLocal(filter.offsets(body.substring(index + 1)));
+    }
+
+    private class Filter {
+        private final String name;
+        private final Function<Long, List<Long>> idLoader;
+        //位数和哈希函数个数
+        private final long bits;
+        private final int hashes;
+        //本地副本，位的顺序与redis位图一致
+        private final AtomicLongArray words;
+        private volatile boolean ready;
+
+        private Filter(String name, Function<Long, List<Long>> idLoader) {
+            this.name = name;
+            this.idLoader = idLoader;
+            long n = Math.max(1, expectedInsertions);
+            //m = -n*ln(p)/(ln2)^2, k = m/n*ln2
+            long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            this.bits = (m + 63) / 64 * 64;
+            this.hashes = Math.max(1, (int) Math.round((double) bits / n * Math.log(2)));
+            this.words = new AtomicLongArray((int) (bits / 64));
+        }
+
+        private byte[] redisKey() {
+            return (RedisConstants.BLOOM_KEY + name).getBytes(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * 两个64位哈希组合出k个位置
+         */
+        private long[] offsets(String id) {
+            long[] hash = MurmurHash.hash128(id.getBytes(StandardCharsets.UTF_8));
+            long[] offsets = new long[hashes];
+            long combined = hash[0];
+            for (int i = 0; i < hashes; i++) {
+                offsets[i] = (combined & Long.MAX_VALUE) % bits;
+                combined += hash[1];
+            }
+            return offsets;
+        }
+
+        private boolean mightContain(String id) {
+            for (long offset : offsets(id)) {
+                if ((words.get((int) (offset >>> 6)) & (1L << (offset & 63))) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void setLocal(long[] offsets) {
+            for (long offset : offsets) {
+                int index = (int) (offset >>> 6);
+                long mask = 1L << (offset & 63);
+                long word;
+                while (((word = words.get(index)) & mask) == 0 && !words.compareAndSet(index, word, word | mask)) {
+                    //CAS失败重试
+                }
+            }
+        }
+
+        /**
+         * 按主键分页构建，与redis中已有的位图合并后读回本地
+         */
+        private void build() {
+            long begin = System.currentTimeMillis();
+            long count = 0;
+            Long lastId = 0L;
+            while (true) {
+                List<Long> ids = idLoader.apply(lastId);
+                if (ids == null || ids.isEmpty()) {
+                    break;
+                }
+                for (Long id : ids) {
+                    setLocal(offsets(String.valueOf(id)));
+                }
+                count += ids.size();
+                lastId = ids.get(ids.size() - 1);
+            }
+            byte[] key = redisKey();
+            byte[] tmp = (RedisConstants.BLOOM_KEY + name + ":tmp:" + owner).getBytes(StandardCharsets.UTF_8);
+            byte[] local = toBytes();
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+                //按位或合并，不覆盖其他节点构建期间写入的位
+                connection.set(tmp, local);
+                connection.bitOp(RedisStringCommands.BitOperation.OR, key, key, tmp);
+                connection.del(tmp);
+                return null;
+            });
+            mergeFromRedis();
+            ready = true;
+            log.info("布隆过滤器{}构建完成, {}个id, {}位, {}个哈希, 耗时{}ms",
+                    name, count, bits, hashes, System.currentTimeMillis() - begin);
+        }
+
+        private void mergeFromRedis() {
+            byte[] key = redisKey();
+            byte[] remote = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(key));
+            if (remote == null) {
+                return;
+            }
+            //整个64位字一次按位或合并，redis位图不足一个字的部分补0。
+            //redis位图中偏移量0是第一个字节的最高位，本地字中是最低位，按大端读出的字反转位序后就是本地的字
+            int length = (int) Math.min(remote.length, bits / 8);
+            ByteBuffer buffer = ByteBuffer.wrap(remote, 0, length);
+            byte[] tail = new byte[8];
+            for (int i = 0; buffer.hasRemaining(); i++) {
+                long word;
+                if (buffer.remaining() >= 8) {
+                    word = buffer.getLong();
+                } else {
+                    int n = buffer.remaining();
+                    buffer.get(tail, 0, n);
+                    word = ByteBuffer.wrap(tail).getLong();
+                }
+                if (word != 0) {
+                    words.getAndAccumulate(i, Long.reverse(word), (x, y) -> x | y);
+                }
+            }
+        }
+
+        private byte[] toBytes() {
+            ByteBuffer buffer = ByteBuffer.allocate((int) (bits / 8));
+            for (int i = 0; i < words.length(); i++) {
+                buffer.putLong(Long.reverse(words.get(i)));
+            }
+            return buffer.array();
+        }
+    }
+}
@@ -1,71 +1,503 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
+/**
+ * 缓存工具类。queryWithPassThrough在redis前面有一层可选的进程内缓存(L1)，按条数和写入时间淘汰，
+ * 缓存反序列化后的对象，调用方不要修改返回的对象。
+ * delete删除redis后通过发布订阅通知所有节点清除L1，消息丢失时最多读到L1有效期内的旧数据。
+ * 缓存未命中时本机同一个key只有一个线程查数据库，其他线程等待它的结果。
+ * 注册了布隆过滤器的key前缀先由过滤器排除一定不存在的id。
+ * 写入的有效期和逻辑过期时间按CachePolicy随机抖动。
+ * 每个查询方法按key前缀统计命中、空值命中、未命中的次数和查数据库的耗时
+ */
 @Slf4j
 @Component
-public class CacheClient {
+public class CacheClient implements MessageListener {
+    //L1中表示空值的标记(缓存穿透)
+    private static final Object NULL_VALUE = new Object();
+    //等待其他节点重建缓存时重新检查的间隔，防止漏掉通知后一直等待
+    private static final long REBUILD_WAIT_MILLIS = 200;
+
     private final StringRedisTemplate stringRedisTemplate;
+    private final CacheBloomFilter bloomFilter;
+    private final CacheRefresher refresher;
+    private final HotKeyDetector hotKeys;
+    //有效期随机抖动
+    private final CachePolicy policy;
+    private final MeterRegistry meterRegistry;
+    //缓存值的序列化方式
+    private final CacheValueCodec codec;
+    //key -> 反序列化后的对象，未开启时为null
+    private final Cache<String, Object> localCache;
+
+    //正在查数据库的key -> 结果，本机的并发未命中共享同一次加载
+    private final Map<String, CompletableFuture<Object>> loading = new ConcurrentHashMap<>();
+    //等待其他节点重建缓存的key -> 重建完成通知
+    private final Map<String, CompletableFuture<Void>> rebuilt = new ConcurrentHashMap<>();
+
+    private final LongAdder localHits = new LongAdder();
+    //L1关闭时热点key命中本地固定值的次数也计入localHits
+    private final LongAdder localMisses = new LongAdder();
+    private final LongAdder redisHits = new LongAdder();
+    private final LongAdder redisMisses = new LongAdder();
+    //等待其他线程加载结果的次数
+    private final LongAdder coalesced = new LongAdder();
+    //被布隆过滤器拦截的次数
+    private final LongAdder bloomRejects = new LongAdder();
+    //每个查询方法的 key前缀 -> 指标
+    private final Map<String, Meters> passThroughMeters = new ConcurrentHashMap<>();
+    private final Map<String, Meters> mutexMeters = new ConcurrentHashMap<>();
+    private final Map<String, Meters> logicalExpireMeters = new ConcurrentHashMap<>();
+    private final Map<String, Meters> batchMeters = new ConcurrentHashMap<>();
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    public CacheClient(StringRedisTemplate stringRedisTemplate,
+                       RedisMessageListenerContainer container,
+                       CacheBloomFilter bloomFilter,
+                       CacheRefresher refresher,
+                       HotKeyDetector hotKeys,
+                       CachePolicy policy,
+                       MeterRegistry meterRegistry,
+                       @Value("${hmdp.cache.local.enabled:true}") boolean localEnabled,
+                       @Value("${hmdp.cache.local.max-size:10000}") long localMaxSize,
+                       @Value("${hmdp.cache.local.ttl:30}") long localTtl,
+                       @Value("${hmdp.cache.codec:json}") String codec) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.codec = "binary".equals(codec) ? new BinaryCacheValueCodec() : new JsonCacheValueCodec();
+        this.bloomFilter = bloomFilter;
+        this.refresher = refresher;
+        this.hotKeys = hotKeys;
+        this.policy = policy;
+        this.meterRegistry = meterRegistry;
+        if (localEnabled) {
+            this.localCache = Caffeine.newBuilder()
+                    .maximumSize(localMaxSize)
+                    .expireAfterWrite(localTtl, TimeUnit.SECONDS)
+                    .build();
+        } else {
+            this.localCache = null;
+        }
+        container.addMessageListener(this, new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+        container.addMessageListener(this, new ChannelTopic(RedisConstants.CACHE_REBUILT_CHANNEL));
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        hotKeys.unpin(key);
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] rawValue = codec.encode(value);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.set(rawKey, rawValue, Expiration.milliseconds(policy.ttlMillis(key, time, unit)),
+                        RedisStringCommands.SetOption.upsert()));
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
         //设置逻辑过期
         RedisData redisData = new RedisData();
         redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        redisData.setExpireTime(LocalDateTime.now().plus(policy.ttlMillis(key, time, unit), ChronoUnit.MILLIS));
         //写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        hotKeys.unpin(key);
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] rawValue = codec.encodeWithExpire(redisData);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.set(rawKey, rawValue));
+    }
+
+    /**
+     * 批量写入逻辑过期的缓存，在一个pipeline中提交。
+     * 每个key的逻辑过期时间在 有效期 ~ 有效期+spreadMillis 之间均匀分布，同一批预热的key不会同时过期
+     * @param values id -> 数据
+     */
+    public <ID> void setWithLogicalExpireBatch(String keyPrefix, Map<ID, ?> values, Long time, TimeUnit unit,
+                                               long spreadMillis) {
+        if (values.isEmpty()) {
+            return;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        long ttl = unit.toMillis(time);
+        List<byte[][]> entries = new ArrayList<>(values.size());
+        for (Map.Entry<ID, ?> entry : values.entrySet()) {
+            String key = keyPrefix + entry.getKey();
+            RedisData redisData = new RedisData();
+            redisData.setData(entry.getValue());
+            long offset = spreadMillis > 0 ? ThreadLocalRandom.current().nextLong(spreadMillis) : 0;
+            redisData.setExpireTime(now.plus(ttl + offset, ChronoUnit.MILLIS));
+            hotKeys.unpin(key);
+            entries.add(new byte[][]{key.getBytes(StandardCharsets.UTF_8), codec.encodeWithExpire(redisData)});
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (byte[][] entry : entries) {
+                connection.set(entry[0], entry[1]);
+            }
+            return null;
+        });
     }
 
     public <T, ID> T queryWithPassThrough(String keyPrefix, ID id, Class<T> type,
                                           Function<ID, T> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
-        //1.从redis查询商品缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在
-        if (StrUtil.isNotBlank(json)) {
-            //3.存在直接返回
-            return JSONUtil.toBean(json, type);
+        Meters meters = meters(passThroughMeters, "pass_through", keyPrefix);
+        //1.查询进程内缓存和redis
+        //布隆过滤器判断一定不存在的id不访问redis和数据库
+        if (!bloomFilter.mightContain(keyPrefix, id)) {
+            bloomRejects.increment();
+            meters.rejected.increment();
+            return null;
         }
-        //判断命中的是否是空值
-        if (json != null) {
-            //返回错误信息
+        Object cached = readCache(key, type);
+        if (cached == null) {
+            //2.未命中，本机同一个key的并发请求只有一个查数据库
+            meters.miss.increment();
+            cached = singleFlight(key, () -> load(key, id, dbFallback, time, unit, meters));
+        } else {
+            meters.hit(cached);
+        }
+        return cached == NULL_VALUE ? null : type.cast(cached);
+    }
+
+    /**
+     * 批量查询：未被布隆过滤器排除、进程内缓存未命中的id用一次MGET查redis，
+     * redis也未命中的id一次交给dbBatchFallback查数据库，结果和空值在一个pipeline中写回redis
+     * @param dbBatchFallback 参数为未命中的id，返回查到的 id -> 数据，不存在的id不放入
+     * @return 按ids的顺序排列的 id -> 数据，不存在的id不放入
+     */
+    public <T, ID> Map<ID, T> queryBatch(String keyPrefix, Collection<ID> ids, Class<T> type,
+                                         Function<List<ID>, Map<ID, T>> dbBatchFallback, Long time, TimeUnit unit) {
+        Meters meters = meters(batchMeters, "batch", keyPrefix);
+        Map<ID, Object> found = new HashMap<>(ids.size() * 2);
+        List<ID> remaining = new ArrayList<>();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            if (!bloomFilter.mightContain(keyPrefix, id)) {
+                bloomRejects.increment();
+                meters.rejected.increment();
+                continue;
+            }
+            Object local = readLocal(keyPrefix + id, type);
+            if (local != null) {
+                meters.hit(local);
+                found.put(id, local);
+                continue;
+            }
+            remaining.add(id);
+        }
+        if (!remaining.isEmpty()) {
+            //1.一次MGET查询redis
+            byte[][] rawKeys = new byte[remaining.size()][];
+            for (int i = 0; i < rawKeys.length; i++) {
+                rawKeys[i] = (keyPrefix + remaining.get(i)).getBytes(StandardCharsets.UTF_8);
+            }
+            List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection ->
+                    connection.mGet(rawKeys));
+            List<ID> misses = new ArrayList<>();
+            for (int i = 0; i < remaining.size(); i++) {
+                ID id = remaining.get(i);
+                byte[] bytes = values == null ? null : values.get(i);
+                Object r = bytes == null ? null : bytes.length == 0 ? NULL_VALUE : codec.decode(bytes, type);
+                if (r == null) {
+                    redisMisses.increment();
+                    misses.add(id);
+                    continue;
+                }
+                redisHits.increment();
+                meters.hit(r);
+                putLocal(keyPrefix + id, r);
+                found.put(id, r);
+            }
+            //2.未命中的id一次查询数据库，并在一个pipeline中写回
+            if (!misses.isEmpty()) {
+                meters.miss.increment(misses.size());
+                Map<ID, T> loaded = meters.load.record(() -> dbBatchFallback.apply(misses));
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (ID id : misses) {
+                        T r = loaded == null ? null : loaded.get(id);
+                        byte[] rawKey = (keyPrefix + id).getBytes(StandardCharsets.UTF_8);
+                        if (r == null) {
+                            //将空值写入redis(缓存穿透)
+                            connection.set(rawKey, new byte[0], Expiration.milliseconds(policy.ttlMillis(
+                                    keyPrefix + id, RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES)),
+                                    RedisStringCommands.SetOption.upsert());
+                        } else {
+                            connection.set(rawKey, codec.encode(r), Expiration.milliseconds(
+                                    policy.ttlMillis(keyPrefix + id, time, unit)), RedisStringCommands.SetOption.upsert());
+                        }
+                    }
+                    return null;
+                });
+                for (ID id : misses) {
+                    T r = loaded == null ? null : loaded.get(id);
+                    putLocal(keyPrefix + id, r == null ? NULL_VALUE : r);
+                    found.put(id, r == null ? NULL_VALUE : r);
+                }
+            }
+        }
+        Map<ID, T> result = new LinkedHashMap<>(found.size() * 2);
+        for (ID id : ids) {
+            Object r = found.get(id);
+            if (r != null && r != NULL_VALUE) {
+                result.put(id, type.cast(r));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 本机内由single flight合并并发请求，多个节点之间再用redis互斥锁保证只有一个节点查数据库。
+     * 没有拿到锁的节点等待持锁节点重建完成的通知，同时定时重新检查，防止通知丢失
+     */
+    public <T, ID> T queryWithMutex(String keyPrefix, ID id, Class<T> type,
+                                    Function<ID, T> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        Meters meters = meters(mutexMeters, "mutex", keyPrefix);
+        //布隆过滤器判断一定不存在的id不访问redis和数据库
+        if (!bloomFilter.mightContain(keyPrefix, id)) {
+            bloomRejects.increment();
+            meters.rejected.increment();
             return null;
         }
-        //查数据库
-        T r = dbFallback.apply(id);
-        //4.不存在
+        Object cached = readCache(key, type);
+        if (cached == null) {
+            meters.miss.increment();
+            cached = singleFlight(key, () -> loadWithMutex(key, id, type, dbFallback, time, unit, meters));
+        } else {
+            meters.hit(cached);
+        }
+        return cached == NULL_VALUE ? null : type.cast(cached);
+    }
+
+    /**
+     * 删除redis中的缓存，并通知所有节点清除进程内缓存
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        if (localCache != null) {
+            localCache.invalidate(key);
+        }
+        hotKeys.unpin(key);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (RedisConstants.CACHE_REBUILT_CHANNEL.equals(channel)) {
+            CompletableFuture<Void> waiter = rebuilt.remove(key);
+            if (waiter != null) {
+                waiter.complete(null);
+            }
+        } else {
+            if (localCache != null) {
+                localCache.invalidate(key);
+            }
+            hotKeys.unpin(key);
+        }
+    }
+
+    public long getLocalHits() {
+        return localHits.sum();
+    }
+
+    public long getLocalMisses() {
+        return localMisses.sum();
+    }
+
+    public long getRedisHits() {
+        return redisHits.sum();
+    }
+
+    public long getRedisMisses() {
+        return redisMisses.sum();
+    }
+
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getBloomRejects() {
+        return bloomRejects.sum();
+    }
+
+    /**
+     * 依次查询进程内缓存和redis
+     * @return 未命中返回null，命中空值返回NULL_VALUE
+     */
+    private Object readCache(String key, Class<?> type) {
+        Object local = readLocal(key, type);
+        if (local != null) {
+            return local;
+        }
+        byte[] bytes = get(key);
+        //判断命中的是否是空值
+        if (bytes != null && bytes.length == 0) {
+            redisHits.increment();
+            putLocal(key, NULL_VALUE);
+            return NULL_VALUE;
+        }
+        //判断是否存在，数据格式已经变化的按未命中处理
+        Object r = bytes == null ? null : codec.decode(bytes, type);
+        if (r != null) {
+            redisHits.increment();
+            putLocal(key, r);
+            return r;
+        }
+        redisMisses.increment();
+        return null;
+    }
+
+    /**
+     * 记录访问并查询进程内缓存和热点key固定在本地的值
+     */
+    private Object readLocal(String key, Class<?> type) {
+        hotKeys.record(key);
+        Object local = localCache == null ? null : localCache.getIfPresent(key);
+        if (local == null) {
+            local = hotKeys.getPinned(key);
+        }
+        if (local == NULL_VALUE || type.isInstance(local)) {
+            localHits.increment();
+            return local;
+        }
+        localMisses.increment();
+        return null;
+    }
+
+    private byte[] get(String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+    }
+
+    /**
+     * 查数据库并写入缓存
+     */
+    private <T, ID> Object load(String key, ID id, Function<ID, T> dbFallback, Long time, TimeUnit unit,
+                                Meters meters) {
+        T r = meters.load.record(() -> dbFallback.apply(id));
         if (r == null) {
-            //5.不存在返回错误
             //将空值写入redis(缓存穿透)
-            stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
+            stringRedisTemplate.opsForValue().set(key, "",
+                    policy.ttlMillis(key, RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES), TimeUnit.MILLISECONDS);
+            putLocal(key, NULL_VALUE);
+            return NULL_VALUE;
         }
-        //6.存在，将数据写到redis
-        this.set(key, r,time,unit);
-        //7.返回
+        this.set(key, r, time, unit);
+        putLocal(key, r);
         return r;
     }
+
+    private <T, ID> Object loadWithMutex(String key, ID id, Class<T> type,
+                                         Function<ID, T> dbFallback, Long time, TimeUnit unit, Meters meters) {
+        String lockKey = RedisConstants.LOCK_CACHE_KEY + key;
+        while (true) {
+            if (tryLock(lockKey)) {
+                try {
+                    //获取锁成功再次检查缓存，没有则查数据库
+                    Object cached = readCache(key, type);
+                    if (cached == null) {
+                        cached = load(key, id, dbFallback, time, unit, meters);
+                        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_REBUILT_CHANNEL, key);
+                    }
+                    return cached;
+                } finally {
+                    unlock(lockKey);
+                }
+            }
+            //其他节点正在重建，先登记等待再检查缓存，避免检查之后才到的通知被漏掉
+            CompletableFuture<Void> waiter = rebuilt.computeIfAbsent(key, k -> new CompletableFuture<>());
+            try {
+                Object cached = readCache(key, type);
+                if (cached != null) {
+                    return cached;
+                }
+                waiter.get(REBUILD_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                //没有收到通知，重新检查缓存和锁
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待缓存重建被中断", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            } finally {
+                rebuilt.remove(key, waiter);
+            }
+        }
+    }
+
+    /**
+     * 同一个key同时只有一个线程执行loader，其他线程等待并共享它的结果
+     */
+    private Object singleFlight(String key, Supplier<Object> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = loading.putIfAbsent(key, future);
+        if (running != null) {
+            coalesced.increment();
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        try {
+            Object value = loader.get();
+            future.complete(value);
+            return value;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    private void putLocal(String key, Object value) {
+        if (localCache != null) {
+            localCache.put(key, value);
+        }
+        //热点key额外固定一份，L1关闭或被淘汰时仍然不访问redis
+        hotKeys.pin(key, value);
+    }
+
     //利用互斥锁解决缓存击穿问题
     private boolean tryLock(String key){
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key,"1",10,TimeUnit.SECONDS);
@@ -74,61 +506,193 @@ public class CacheClient {
     private void unlock(String key){
         stringRedisTemplate.delete(key);
     }
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
     //这个方法需要将key提前加入缓存，不需要检查缓存穿透问题，如果redis查不到key说明，不在活动范围内
     //直接返回空就可以，不用查数据库
     public <T, ID> T queryWithLogicalExpire(String keyPrefix,ID id,Class<T> type,
                                             Function<ID,T> dbFallback,Long time, TimeUnit unit){
         String key = keyPrefix + id;
-        //1.从redis查询商品缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在
-        if(StrUtil.isBlank(json)){
-            //3.不存在直接返回
-            return null;
+        Meters meters = meters(logicalExpireMeters, "logical_expire", keyPrefix);
+        hotKeys.record(key);
+        //热点key先查本地固定的值
+        Object pinned = hotKeys.getPinned(key);
+        RedisData redisData;
+        if (pinned instanceof RedisData && type.isInstance(((RedisData) pinned).getData())) {
+            redisData = (RedisData) pinned;
+        } else {
+            //1.从redis查询商品缓存
+            byte[] bytes = get(key);
+            //2.判断是否存在
+            if(bytes == null || bytes.length == 0){
+                //3.不存在直接返回
+                meters.miss.increment();
+                return null;
+            }
+            //命中需要判断过期时间，反序列化为对象
+            redisData = codec.decodeWithExpire(bytes, type);
+            if (redisData != null) {
+                hotKeys.pin(key, redisData);
+            }
         }
-        //命中需要判断过期时间，反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        T r = JSONUtil.toBean((JSONObject) redisData.getData(),type);
+        if(redisData == null){
+            //缓存的数据格式已经变化，没有旧数据可以返回，本机只有一个线程重建，其他线程等待它的结果
+            meters.miss.increment();
+            return type.cast(singleFlight(key, () -> rebuildIncompatible(key, id, type, dbFallback, time, unit, meters)));
+        }
+        T r = type.cast(redisData.getData());
         LocalDateTime expireTime = redisData.getExpireTime();
+        //记录访问，热点key由refresher在过期前提前刷新
+        refresher.recordAccess(key, toMillis(expireTime),
+                () -> refresh(key, id, type, dbFallback, time, unit, meters));
         //判断是否过期
         if(expireTime.isAfter(LocalDateTime.now())) {
             //未过期直接返回
+            meters.hit.increment();
             return r;
         }
-        //已经过期缓存重建
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
+        meters.stale.increment();
+        //已经过期缓存重建，每个key一把锁
+        String lockKey = RedisConstants.LOCK_CACHE_KEY + key;
         //获取mutex
         boolean tryLock = tryLock(lockKey);
         //判断是否获取成功
         if(tryLock) {
-            //获取成功 再次检查缓存
-            //1.从redis查询商品缓存
-            json = stringRedisTemplate.opsForValue().get(key);
-            //2.判断是否存在
-            if(StrUtil.isBlank(json)){
-                //3.不存在直接返回
-                return null;
-            }
-            //命中需要判断过期时间，反序列化为对象
-            redisData = JSONUtil.toBean(json, RedisData.class);
-            r = JSONUtil.toBean((JSONObject) redisData.getData(),type);
-            expireTime = redisData.getExpireTime();
-            //判断是否过期
-            if(expireTime.isAfter(LocalDateTime.now())) {
-                //未过期直接返回
-                return r;
-            }
-            CACHE_REBUILD_EXECUTOR.submit(()->{
+            boolean submitted = refresher.submit(() -> {
                 try {
-                    T t = dbFallback.apply(id);
-                    this.setWithLogicalExpire(key,t,time,unit);
+                    rebuildLocked(key, id, type, dbFallback, time, unit, 0, meters);
                 } finally {
                     unlock(lockKey);
                 }
             });
+            if (!submitted) {
+                //重建队列已满，返回旧数据，下次读取时再重建
+                unlock(lockKey);
+            }
         }
         //返回过期商铺信息
         return r;
     }
+
+    /**
+     * 提前刷新：获取锁后重建，其他节点持有锁时跳过
+     * @return 新的逻辑过期时间，没有刷新返回0
+     */
+    private <T, ID> long refresh(String key, ID id, Class<T> type,
+                                 Function<ID, T> dbFallback, Long time, TimeUnit unit, Meters meters) {
+        String lockKey = RedisConstants.LOCK_CACHE_KEY + key;
+        if (!tryLock(lockKey)) {
+            return 0;
+        }
+        try {
+            return rebuildLocked(key, id, type, dbFallback, time, unit, refresher.getAheadMillis(), meters);
+        } finally {
+            unlock(lockKey);
+        }
+    }
+
+    /**
+     * 缓存的数据格式不兼容时重建：获取锁后再检查一次缓存，仍然不兼容才查数据库写回；
+     * 其他节点持有锁时只查数据库不写缓存，每个节点最多查一次
+     */
+    private <T, ID> T rebuildIncompatible(String key, ID id, Class<T> type,
+                                          Function<ID, T> dbFallback, Long time, TimeUnit unit, Meters meters) {
+        String lockKey = RedisConstants.LOCK_CACHE_KEY + key;
+        boolean locked = tryLock(lockKey);
+        try {
+            byte[] bytes = get(key);
+            if (bytes == null || bytes.length == 0) {
+                //key已经被删除，不在活动范围内
+                return null;
+            }
+            RedisData redisData = codec.decodeWithExpire(bytes, type);
+            if (redisData != null) {
+                //其他线程或节点已经重建
+                return type.cast(redisData.getData());
+            }
+            T t = meters.load.record(() -> dbFallback.apply(id));
+            if (locked) {
+                this.setWithLogicalExpire(key, t, time, unit);
+            }
+            return t;
+        } finally {
+            if (locked) {
+                unlock(lockKey);
+            }
+        }
+    }
+
+    /**
+     * 持有锁时调用：再次检查缓存，剩余时间超过ahead毫秒说明其他节点已经重建过，不再查数据库
+     * @return 缓存的逻辑过期时间
+     */
+    private <T, ID> long rebuildLocked(String key, ID id, Class<T> type,
+                                       Function<ID, T> dbFallback, Long time, TimeUnit unit, long ahead,
+                                       Meters meters) {
+        long now = System.currentTimeMillis();
+        byte[] bytes = get(key);
+        if (bytes == null || bytes.length == 0) {
+            //key已经被删除，不在活动范围内
+            return 0;
+        }
+        RedisData redisData = codec.decodeWithExpire(bytes, type);
+        if (redisData != null) {
+            long expireAt = toMillis(redisData.getExpireTime());
+            if (expireAt - now > ahead) {
+                return expireAt;
+            }
+        }
+        T t = meters.load.record(() -> dbFallback.apply(id));
+        this.setWithLogicalExpire(key, t, time, unit);
+        return now + unit.toMillis(time);
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private Meters meters(Map<String, Meters> map, String method, String keyPrefix) {
+        Meters meters = map.get(keyPrefix);
+        return meters != null ? meters : map.computeIfAbsent(keyPrefix, k -> new Meters(method, k));
+    }
+
+    /**
+     * 一个查询方法对一个key前缀的指标：
+     * hit命中数据，null_hit命中空值，miss未命中，stale命中已逻辑过期的数据，rejected被布隆过滤器拦截
+     */
+    private class Meters {
+        private final Counter hit;
+        private final Counter nullHit;
+        private final Counter miss;
+        private final Counter stale;
+        private final Counter rejected;
+        //查数据库的耗时，导出为直方图，分位数在prometheus端计算
+        private final Timer load;
+
+        private Meters(String method, String keyPrefix) {
+            Tags tags = Tags.of("method", method, "cache", keyPrefix);
+            this.hit = counter(tags, "hit");
+            this.nullHit = counter(tags, "null_hit");
+            this.miss = counter(tags, "miss");
+            this.stale = counter(tags, "stale");
+            this.rejected = counter(tags, "rejected");
+            this.load = Timer.builder("hmdp.cache.load")
+                    .description("缓存未命中时查询数据库的耗时")
+                    .tags(tags)
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(Duration.ofMillis(1))
+                    .maximumExpectedValue(Duration.ofSeconds(10))
+                    .register(meterRegistry);
+        }
+
+        private void hit(Object cached) {
+            (cached == NULL_VALUE ? nullHit : hit).increment();
+        }
+
+        private Counter counter(Tags tags, String result) {
+            return Counter.builder("hmdp.cache.requests")
+                    .description("缓存查询次数")
+                    .tags(tags)
+                    .tag("result", result)
+                    .register(meterRegistry);
+        }
+    }
 }
@@ -0,0 +1,61 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存有效期策略：写入时在配置的有效期上随机增加0~ratio比例的时间，
+ * 同一批写入的key不会在同一时刻过期(缓存雪崩)。ratio按key前缀配置，最长匹配的前缀优先
+ */
+@Component
+public class CachePolicy {
+    private final double defaultRatio;
+    //key前缀 -> 抖动比例
+    private final Map<String, Double> ratios = new LinkedHashMap<>();
+
+    /**
+     * @param prefixes 格式为 前缀=比例，逗号分隔，例如 cache:shop:=0.2,cache:user:=0.1
+     */
+    public CachePolicy(@Value("${hmdp.cache.jitter.ratio:0.1}") double defaultRatio,
+                       @Value("${hmdp.cache.jitter.prefixes:}") String prefixes) {
+        this.defaultRatio = defaultRatio;
+        for (String item : StrUtil.split(prefixes, ',', true, true)) {
+            int index = item.lastIndexOf('=');
+            if (index <= 0) {
+                throw new IllegalArgumentException("缓存有效期抖动配置格式错误: " + item);
+            }
+            ratios.put(item.substring(0, index).trim(), Double.valueOf(item.substring(index + 1).trim()));
+        }
+    }
+
+    /**
+     * @return 加上随机抖动后的有效期毫秒数
+     */
+    public long ttlMillis(String key, long time, TimeUnit unit) {
+        long millis = unit.toMillis(time);
+        double ratio = ratio(key);
+        if (ratio <= 0 || millis <= 0) {
+            return millis;
+        }
+        return millis + (long) (millis * ratio * ThreadLocalRandom.current().nextDouble());
+    }
+
+    private double ratio(String key) {
+        double ratio = defaultRatio;
+        int matched = -1;
+        for (Map.Entry<String, Double> entry : ratios.entrySet()) {
+            String prefix = entry.getKey();
+            if (prefix.length() > matched && key.startsWith(prefix)) {
+                matched = prefix.length();
+                ratio = entry.getValue();
+            }
+        }
+        return ratio;
+    }
+}
@@ -0,0 +1,170 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 逻辑过期缓存的提前刷新：记录每个key在每个统计周期内的读取次数，
+ * 读取次数达到阈值的热点key在逻辑过期前ahead毫秒内提交刷新，冷key不刷新，等读取时再按逻辑过期重建。
+ * 刷新任务在有界线程池中执行，队列满时拒绝提交，下个周期或下次读取时再试
+ */
+@Slf4j
+@Component
+public class CacheRefresher {
+    private final boolean enabled;
+    private final long aheadMillis;
+    private final long hotThreshold;
+    private final int maxKeys;
+    private final int coldRounds;
+    private final ThreadPoolExecutor executor;
+    //key -> 访问统计
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final LongAdder refreshed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public CacheRefresher(@Value("${hmdp.cache.refresh.enabled:true}") boolean enabled,
+                          @Value("${hmdp.cache.refresh.ahead:5000}") long aheadMillis,
+                          @Value("${hmdp.cache.refresh.hot-threshold:10}") long hotThreshold,
+                          @Value("${hmdp.cache.refresh.max-keys:10000}") int maxKeys,
+                          @Value("${hmdp.cache.refresh.cold-rounds:60}") int coldRounds,
+                          @Value("${hmdp.cache.refresh.threads:4}") int threads,
+                          @Value("${hmdp.cache.refresh.queue-capacity:1000}") int queueCapacity) {
+        this.enabled = enabled;
+        this.aheadMillis = aheadMillis;
+        this.hotThreshold = Math.max(1, hotThreshold);
+        this.maxKeys = maxKeys;
+        this.coldRounds = Math.max(1, coldRounds);
+        AtomicInteger index = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+            Thread t = new Thread(r, "cache-refresh-" + index.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * 读取逻辑过期的key时调用
+     * @param expireAt 当前缓存值的逻辑过期时间
+     * @param refresh 刷新缓存，返回新的逻辑过期时间，没有刷新返回0
+     */
+    public void recordAccess(String key, long expireAt, LongSupplier refresh) {
+        if (!enabled) {
+            return;
+        }
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            if (entries.size() >= maxKeys) {
+                //统计的key已满，新key按冷key处理
+                return;
+            }
+            entry = entries.computeIfAbsent(key, k -> new Entry());
+        }
+        entry.hits.increment();
+        entry.expireAt = expireAt;
+        entry.refresh = refresh;
+    }
+
+    /**
+     * 提交重建任务
+     * @return false表示队列已满，任务没有提交
+     */
+    public boolean submit(Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            return false;
+        }
+    }
+
+    public long getAheadMillis() {
+        return aheadMillis;
+    }
+
+    public long getRefreshed() {
+        return refreshed.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public int getTrackedKeys() {
+        return entries.size();
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.cache.refresh.interval:1000}")
+    public void refreshHotKeys() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            long hits = entry.hits.sumThenReset();
+            if (hits == 0) {
+                //连续多个周期没有读取的key不再统计
+                if (++entry.idleRounds >= coldRounds) {
+                    it.remove();
+                }
+                continue;
+            }
+            entry.idleRounds = 0;
+            if (hits < hotThreshold || entry.expireAt - now > aheadMillis
+                    || !entry.refreshing.compareAndSet(false, true)) {
+                continue;
+            }
+            LongSupplier refresh = entry.refresh;
+            boolean submitted = submit(() -> {
+                try {
+                    long expireAt = refresh.getAsLong();
+                    if (expireAt > 0) {
+                        entry.expireAt = expireAt;
+                        refreshed.increment();
+                    }
+                } catch (RuntimeException e) {
+                    log.error("提前刷新缓存失败", e);
+                } finally {
+                    entry.refreshing.set(false);
+                }
+            });
+            if (!submitted) {
+                entry.refreshing.set(false);
+            }
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdownNow();
+    }
+
+    private static class Entry {
+        //当前统计周期内的读取次数
+        private final LongAdder hits = new LongAdder();
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private volatile long expireAt;
+        private volatile LongSupplier refresh;
+        //连续没有读取的周期数，只在定时任务线程中修改
+        private int idleRounds;
+    }
+}
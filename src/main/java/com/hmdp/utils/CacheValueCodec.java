@@ -0,0 +1,23 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的序列化方式，CacheClient按hmdp.cache.codec选择
+ */
+public interface CacheValueCodec {
+    byte[] encode(Object value);
+
+    /**
+     * 逻辑过期的缓存值
+     */
+    byte[] encodeWithExpire(RedisData redisData);
+
+    /**
+     * @return 数据格式不兼容(比如类的字段已经变化)时返回null，调用方按未命中处理
+     */
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    /**
+     * @return data已经转换为type类型的RedisData，数据格式不兼容时返回null
+     */
+    <T> RedisData decodeWithExpire(byte[] bytes, Class<T> type);
+}
@@ -0,0 +1,182 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 热点key探测：按sample-rate抽样记录redis key的访问，计数存在count-min sketch中，每个周期所有计数减半(衰减)。
+ * 估计次数达到hot-threshold的key成为热点key，衰减后低于阈值一半时冷却。
+ * 热点key的值可以固定在一个短有效期的本地缓存中，冷却后移除
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+    private static final int DEPTH = 4;
+    //展示时隐藏token
+    private static final int MASK_KEEP = 6;
+
+    private final boolean enabled;
+    private final int sampleRate;
+    private final long hotThreshold;
+    private final int topK;
+    private final int maxHotKeys;
+    private final int widthMask;
+    //DEPTH行，每行width个计数
+    private final AtomicLongArray counters;
+    //热点key -> 估计的抽样次数
+    private final Map<String, Long> hotKeys = new ConcurrentHashMap<>();
+    //热点key的值
+    private final Cache<String, Object> pinned;
+
+    public HotKeyDetector(@Value("${hmdp.hot-key.enabled:true}") boolean enabled,
+                          @Value("${hmdp.hot-key.sample-rate:10}") int sampleRate,
+                          @Value("${hmdp.hot-key.width:4096}") int width,
+                          @Value("${hmdp.hot-key.hot-threshold:50}") long hotThreshold,
+                          @Value("${hmdp.hot-key.top-k:20}") int topK,
+                          @Value("${hmdp.hot-key.max-hot-keys:200}") int maxHotKeys,
+                          @Value("${hmdp.hot-key.pin-ttl:2000}") long pinTtl) {
+        this.enabled = enabled;
+        this.sampleRate = Math.max(1, sampleRate);
+        this.hotThreshold = Math.max(1, hotThreshold);
+        this.topK = topK;
+        this.maxHotKeys = maxHotKeys;
+        //宽度取2的幂
+        int w = Integer.highestOneBit(Math.max(16, width - 1)) << 1;
+        this.widthMask = w - 1;
+        this.counters = new AtomicLongArray(DEPTH * w);
+        this.pinned = Caffeine.newBuilder()
+                .maximumSize(Math.max(1, maxHotKeys))
+                .expireAfterWrite(pinTtl, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * 记录一次访问
+     */
+    public void record(String key) {
+        if (!enabled || (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0)) {
+            return;
+        }
+        int h1 = spread(key.hashCode());
+        int h2 = spread(h1 * 0x9E3779B9) | 1;
+        long estimate = Long.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            estimate = Math.min(estimate, counters.incrementAndGet(index(i, h1, h2)));
+        }
+        if (estimate >= hotThreshold && (hotKeys.containsKey(key) || hotKeys.size() < maxHotKeys)) {
+            if (hotKeys.put(key, estimate) == null) {
+                log.info("发现热点key:{}", mask(key));
+            }
+        }
+    }
+
+    public boolean isHot(String key) {
+        return enabled && hotKeys.containsKey(key);
+    }
+
+    /**
+     * @return 热点key固定在本地的值，不是热点或已经过期返回null
+     */
+    public Object getPinned(String key) {
+        return enabled ? pinned.getIfPresent(key) : null;
+    }
+
+    /**
+     * 热点key的值固定到本地，不是热点key时忽略
+     */
+    public void pin(String key, Object value) {
+        if (isHot(key)) {
+            pinned.put(key, value);
+        }
+    }
+
+    public void unpin(String key) {
+        pinned.invalidate(key);
+    }
+
+    /**
+     * @return 估计访问次数最多的k个热点key，按次数降序，次数已换算为未抽样的次数
+     */
+    public Map<String, Long> topK(int k) {
+        List<Map.Entry<String, Long>> list = new ArrayList<>(hotKeys.entrySet());
+        list.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : list.subList(0, Math.min(k <= 0 ? topK : k, list.size()))) {
+            result.put(mask(entry.getKey()), entry.getValue() * sampleRate);
+        }
+        return result;
+    }
+
+    public int getHotKeyCount() {
+        return hotKeys.size();
+    }
+
+    /**
+     * 所有计数减半，冷却的key不再是热点并移除本地固定的值
+     */
+    @Scheduled(fixedDelayString = "${hmdp.hot-key.decay-interval:5000}")
+    public void decay() {
+        if (!enabled) {
+            return;
+        }
+        for (int i = 0; i < counters.length(); i++) {
+            long v = counters.get(i);
+            if (v != 0) {
+                counters.set(i, v >> 1);
+            }
+        }
+        for (Map.Entry<String, Long> entry : hotKeys.entrySet()) {
+            String key = entry.getKey();
+            long estimate = estimate(key);
+            if (estimate < hotThreshold / 2) {
+                hotKeys.remove(key);
+                pinned.invalidate(key);
+                log.info("热点key已冷却:{}", mask(key));
+            } else {
+                entry.setValue(estimate);
+            }
+        }
+    }
+
+    private long estimate(String key) {
+        int h1 = spread(key.hashCode());
+        int h2 = spread(h1 * 0x9E3779B9) | 1;
+        long estimate = Long.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            estimate = Math.min(estimate, counters.get(index(i, h1, h2)));
+        }
+        return estimate;
+    }
+
+    private int index(int row, int h1, int h2) {
+        return row * (widthMask + 1) + ((h1 + row * h2) & widthMask);
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    private static String mask(String key) {
+        if (!key.startsWith(RedisConstants.LOGIN_USER_KEY)) {
+            return key;
+        }
+        int keep = Math.min(key.length(), RedisConstants.LOGIN_USER_KEY.length() + MASK_KEEP);
+        return key.substring(0, keep) + "***";
+    }
+}
@@ -0,0 +1,52 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * hutool json格式。
+ * 从binary切回json后redis中仍有二进制格式的数据，这些数据交给二进制格式解码，不当作json解析
+ */
+public class JsonCacheValueCodec implements CacheValueCodec {
+    //读到二进制数据时才创建，二进制格式内部也持有一个json格式
+    private volatile BinaryCacheValueCodec binary;
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] encodeWithExpire(RedisData redisData) {
+        return encode(redisData);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        if (BinaryCacheValueCodec.isBinary(bytes)) {
+            return binary().decode(bytes, type);
+        }
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public <T> RedisData decodeWithExpire(byte[] bytes, Class<T> type) {
+        if (BinaryCacheValueCodec.isBinary(bytes)) {
+            return binary().decodeWithExpire(bytes, type);
+        }
+        RedisData redisData = JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class);
+        redisData.setData(JSONUtil.toBean((JSONObject) redisData.getData(), type));
+        return redisData;
+    }
+
+    private BinaryCacheValueCodec binary() {
+        BinaryCacheValueCodec codec = binary;
+        if (codec == null) {
+            codec = new BinaryCacheValueCodec();
+            binary = codec;
+        }
+        return codec;
+    }
+}
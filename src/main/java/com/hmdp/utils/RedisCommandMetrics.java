@@ -0,0 +1,139 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionCommands;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.RedisHashCommands;
+import org.springframework.data.redis.connection.RedisHyperLogLogCommands;
+import org.springframework.data.redis.connection.RedisKeyCommands;
+import org.springframework.data.redis.connection.RedisListCommands;
+import org.springframework.data.redis.connection.RedisPubSubCommands;
+import org.springframework.data.redis.connection.RedisScriptingCommands;
+import org.springframework.data.redis.connection.RedisServerCommands;
+import org.springframework.data.redis.connection.RedisSetCommands;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.RedisTxCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * redis命令耗时：给RedisConnectionFactory加一层代理，取出的每个连接也加一层代理，
+ * 按命令所属的接口(string、hash、zset、script等)分组记录耗时，StringRedisTemplate和发布订阅的命令都会经过这里。
+ * pipeline和事务中的命令只是入队，不计耗时，pipeline的耗时记在closePipeline(pipeline组)上。
+ * redisson使用自己的连接，不在统计范围内
+ */
+@Component
+public class RedisCommandMetrics implements BeanPostProcessor {
+    private static final String PIPELINE = "pipeline";
+    //方法名 -> 命令组
+    private static final Map<String, String> FAMILIES = new HashMap<>();
+
+    static {
+        family("connection", RedisConnectionCommands.class);
+        family("key", RedisKeyCommands.class);
+        family("string", RedisStringCommands.class);
+        family("list", RedisListCommands.class);
+        family("set", RedisSetCommands.class);
+        family("zset", RedisZSetCommands.class);
+        family("hash", RedisHashCommands.class);
+        family("hyperloglog", RedisHyperLogLogCommands.class);
+        family("geo", RedisGeoCommands.class);
+        family("stream", RedisStreamCommands.class);
+        family("script", RedisScriptingCommands.class);
+        family("pubsub", RedisPubSubCommands.class);
+        family("tx", RedisTxCommands.class);
+        family("server", RedisServerCommands.class);
+        FAMILIES.put("closePipeline", PIPELINE);
+    }
+
+    //延迟获取，BeanPostProcessor依赖的bean不会再被其他BeanPostProcessor处理
+    private final ObjectProvider<MeterRegistry> meterRegistry;
+    //命令组 -> {成功耗时, 失败耗时}
+    private final Map<String, Timer[]> timers = new ConcurrentHashMap<>();
+
+    public RedisCommandMetrics(ObjectProvider<MeterRegistry> meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (!(bean instanceof RedisConnectionFactory)) {
+            return bean;
+        }
+        ProxyFactory proxyFactory = new ProxyFactory(bean);
+        proxyFactory.addAdvice((MethodInterceptor) invocation -> {
+            Object result = invocation.proceed();
+            if (result instanceof RedisConnection) {
+                return connectionProxy(result);
+            }
+            return result;
+        });
+        return proxyFactory.getProxy();
+    }
+
+    private Object connectionProxy(Object connection) {
+        ProxyFactory proxyFactory = new ProxyFactory(connection);
+        proxyFactory.addAdvice((MethodInterceptor) this::timed);
+        return proxyFactory.getProxy();
+    }
+
+    private Object timed(MethodInvocation invocation) throws Throwable {
+        String family = FAMILIES.get(invocation.getMethod().getName());
+        if (family == null) {
+            //close、isPipelined等不是命令
+            return invocation.proceed();
+        }
+        RedisConnection connection = (RedisConnection) invocation.getThis();
+        if (!PIPELINE.equals(family) && (connection.isPipelined() || connection.isQueueing())) {
+            //只是入队，不计耗时
+            return invocation.proceed();
+        }
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            Object result = invocation.proceed();
+            success = true;
+            return result;
+        } finally {
+            timers(family)[success ? 0 : 1].record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private Timer[] timers(String family) {
+        Timer[] t = timers.get(family);
+        return t != null ? t : timers.computeIfAbsent(family, f -> new Timer[]{timer(f, "success"), timer(f, "error")});
+    }
+
+    private Timer timer(String family, String outcome) {
+        return Timer.builder("hmdp.redis.command")
+                .description("redis命令耗时")
+                .tag("family", family)
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofNanos(100_000))
+                .maximumExpectedValue(Duration.ofSeconds(1))
+                .register(meterRegistry.getObject());
+    }
+
+    private static void family(String family, Class<?> commands) {
+        for (Method method : commands.getMethods()) {
+            FAMILIES.putIfAbsent(method.getName(), family);
+        }
+    }
+}
@@ -11,10 +11,30 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_REBUILT_CHANNEL = "cache:rebuilt";
+    public static final String LOCK_CACHE_KEY = "lock:";
+    public static final String BLOOM_KEY = "bloom:";
+    public static final String BLOOM_ADD_CHANNEL = "bloom:add";
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_WINDOW_KEY = "seckill:window:";
+    public static final String SECKILL_RESERVE_KEY = "seckill:reserve:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_STATUS_KEY = "seckill:status:";
+    public static final Long SECKILL_STATUS_TTL = 30L;
+    public static final String SECKILL_STATUS_CHANNEL = "seckill:status";
+    public static final String SECKILL_BUYER_KEY = "seckill:buyer:";
+    public static final String SECKILL_ADMIT_KEY = "seckill:admit:";
+    public static final String SECKILL_DEADLINE_KEY = "seckill:deadline";
+    public static final String ID_WORKER_KEY = "id:worker:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
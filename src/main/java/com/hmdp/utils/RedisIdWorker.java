@@ -1,38 +1,193 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
 public class RedisIdWorker {
     //开始时间戳
     private static final long BEGIN_TIMESTAMP = 1640995200L;
     private static final int COUNT_BITS = 32;
+    private static final long SECONDS_PER_DAY = 86400L;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd");
     private StringRedisTemplate stringRedisTemplate;
+    //incr:每个id自增一次; segment:每次从redis领取一段序列号在本地分配
+    private final boolean segmentMode;
+    private final int step;
+    //当前号段剩余比例低于该值时预取下一段
+    private final double prefetchRatio;
+    //前缀 -> 号段
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+    private final ExecutorService PREFETCH_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "id-segment-prefetch");
+        t.setDaemon(true);
+        return t;
+    });
+    //使用本地snowflake生成id的业务前缀，比如order
+    @Value("${hmdp.id.snowflake-prefixes:}")
+    private Set<String> snowflakePrefixes = Collections.emptySet();
+    @Resource
+    private SnowflakeIdWorker snowflakeIdWorker;
+    //缓存当天的日期字符串，避免每次格式化
+    private volatile DateCache dateCache = new DateCache(-1, null);
 
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+        this(stringRedisTemplate, "incr", 1000, 0.2);
+    }
+
+    @Autowired
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate,
+                         @Value("${hmdp.id.mode:incr}") String mode,
+                         @Value("${hmdp.id.segment-step:1000}") int step,
+                         @Value("${hmdp.id.prefetch-ratio:0.2}") double prefetchRatio) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.segmentMode = "segment".equals(mode);
+        this.step = Math.max(1, step);
+        this.prefetchRatio = prefetchRatio;
     }
 
     //参数为业务的前缀
     public long nextId(String keyPrefix){
+        if (snowflakePrefixes.contains(keyPrefix)) {
+            //完全在本地生成,不访问redis
+            return snowflakeIdWorker.nextId();
+        }
+        return nextId(keyPrefix, LocalDateTime.now().toEpochSecond(ZoneOffset.UTC));
+    }
+
+    long nextId(String keyPrefix, long nowSecond) {
         //1.生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
         //2.生成序列号
         //2.1获取当天日期(防止32位越界)
-        String date = now.format(DateTimeFormatter.ofPattern("yyyyMMdd"));
+        DateCache date = date(nowSecond / SECONDS_PER_DAY);
         //2.2自增长
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        long count = segmentMode ? nextSequence(keyPrefix, date)
+                : stringRedisTemplate.opsForValue().increment(key(keyPrefix, date));
         //3.拼接并返回
         return timestamp<<COUNT_BITS | count;
     }
 
+    @PreDestroy
+    private void destroy() {
+        PREFETCH_EXECUTOR.shutdownNow();
+    }
+
+    private DateCache date(long day) {
+        DateCache cache = dateCache;
+        if (cache.day != day) {
+            cache = new DateCache(day, LocalDateTime.ofEpochSecond(day * SECONDS_PER_DAY, 0, ZoneOffset.UTC)
+                    .format(DATE_FORMATTER));
+            dateCache = cache;
+        }
+        return cache;
+    }
+
+    private static String key(String keyPrefix, DateCache date) {
+        return "icr:" + keyPrefix + ":" + date.date;
+    }
+
+    /**
+     * 号段模式：序列号来自本地号段，号段用完时切换到预取的下一段，日期变化时丢弃旧号段
+     */
+    private long nextSequence(String keyPrefix, DateCache date) {
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, k -> new SegmentBuffer());
+        while (true) {
+            Segment segment = buffer.current;
+            if (segment != null && segment.day == date.day) {
+                long value = segment.cursor.getAndIncrement();
+                if (value <= segment.end) {
+                    if (segment.end - value < step * prefetchRatio) {
+                        prefetch(keyPrefix, buffer, date);
+                    }
+                    return value;
+                }
+            }
+            synchronized (buffer) {
+                //其他线程已经切换过号段
+                if (buffer.current != segment) {
+                    continue;
+                }
+                Segment next = buffer.next;
+                buffer.next = null;
+                if (next == null || next.day != date.day) {
+                    next = loadSegment(keyPrefix, date);
+                }
+                buffer.current = next;
+            }
+        }
+    }
+
+    private void prefetch(String keyPrefix, SegmentBuffer buffer, DateCache date) {
+        if (buffer.next != null || !buffer.loading.compareAndSet(false, true)) {
+            return;
+        }
+        PREFETCH_EXECUTOR.execute(() -> {
+            try {
+                Segment next = loadSegment(keyPrefix, date);
+                synchronized (buffer) {
+                    buffer.next = next;
+                }
+            } catch (RuntimeException e) {
+                //预取失败时等号段用完后同步领取
+                log.error("预取id号段失败", e);
+            } finally {
+                buffer.loading.set(false);
+            }
+        });
+    }
+
+    private Segment loadSegment(String keyPrefix, DateCache date) {
+        Long end = stringRedisTemplate.opsForValue().increment(key(keyPrefix, date), step);
+        return new Segment(date.day, end - step + 1, end);
+    }
+
+    private static class DateCache {
+        private final long day;
+        private final String date;
+
+        private DateCache(long day, String date) {
+            this.day = day;
+            this.date = date;
+        }
+    }
+
+    private static class Segment {
+        private final long day;
+        private final AtomicLong cursor;
+        private final long end;
+
+        private Segment(long day, long start, long end) {
+            this.day = day;
+            this.cursor = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+
+    private static class SegmentBuffer {
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean loading = new AtomicBoolean();
+    }
+
     public static void main(String[] args) {
         LocalDateTime time = LocalDateTime.of(2022, 1, 1, 0, 0, 0);
         long second = time.toEpochSecond(ZoneOffset.UTC);
@@ -0,0 +1,220 @@
+package com.hmdp.utils;
+
+import cn.hutool.crypto.SecureUtil;
+import cn.hutool.core.io.IoUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * lua脚本注册表：启动时读取classpath下所有的lua脚本并SCRIPT LOAD到redis，之后只发送EVALSHA。
+ * redis重启或执行SCRIPT FLUSH后会返回NOSCRIPT，此时重新加载所有脚本再执行一次。
+ * 脚本名为文件名去掉.lua，比如 seckill.lua 的脚本名为 seckill。
+ * 每个脚本的执行耗时按脚本名记录，批量执行按整批记录
+ */
+@Slf4j
+@Component
+public class RedisScriptRegistry {
+    private static final String LOCATION = "classpath*:*.lua";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    //脚本名 -> {脚本内容, sha1}
+    private final Map<String, byte[][]> scripts = new HashMap<>();
+    //脚本名 -> 执行耗时
+    private final Map<String, Timer> timers = new HashMap<>();
+    private final MeterRegistry meterRegistry;
+    private final Timer batchTimer;
+    private final DistributionSummary batchSize;
+    //收到NOSCRIPT后重新加载的次数
+    private final Counter reloads;
+
+    public RedisScriptRegistry(StringRedisTemplate stringRedisTemplate, MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.meterRegistry = meterRegistry;
+        this.batchTimer = histogram(Timer.builder("hmdp.redis.script.batch")
+                .description("批量执行lua脚本的耗时"));
+        this.batchSize = DistributionSummary.builder("hmdp.redis.script.batch.size")
+                .description("每批执行的lua脚本个数")
+                .register(meterRegistry);
+        this.reloads = Counter.builder("hmdp.redis.script.reloads")
+                .description("收到NOSCRIPT后重新加载脚本的次数")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    private void init() throws IOException {
+        for (Resource resource : new PathMatchingResourcePatternResolver().getResources(LOCATION)) {
+            String filename = resource.getFilename();
+            if (filename == null) {
+                continue;
+            }
+            String source;
+            try (InputStream in = resource.getInputStream()) {
+                source = IoUtil.read(in, StandardCharsets.UTF_8);
+            }
+            String name = filename.substring(0, filename.length() - ".lua".length());
+            scripts.put(name, new byte[][]{source.getBytes(StandardCharsets.UTF_8),
+                    SecureUtil.sha1(source).getBytes(StandardCharsets.UTF_8)});
+            timers.put(name, histogram(Timer.builder("hmdp.redis.script")
+                    .description("执行lua脚本的耗时")
+                    .tag("script", name)));
+        }
+        try {
+            loadAll();
+        } catch (RuntimeException e) {
+            //redis暂时不可用，第一次执行时收到NOSCRIPT再加载
+            log.warn("加载lua脚本失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 把所有脚本加载到redis
+     */
+    public void loadAll() {
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            for (byte[][] script : scripts.values()) {
+                connection.scriptLoad(script[0]);
+            }
+            return null;
+        });
+        log.debug("已加载lua脚本{}个", scripts.size());
+    }
+
+    /**
+     * 执行返回整数的脚本
+     */
+    public Long execute(String name, List<String> keys, String... args) {
+        byte[] sha = sha(name);
+        byte[][] keysAndArgs = keysAndArgs(keys, args);
+        return timers.get(name).record(() -> {
+            try {
+                return evalSha(sha, keys.size(), keysAndArgs);
+            } catch (RuntimeException e) {
+                if (!isNoScript(e)) {
+                    throw e;
+                }
+                reload();
+                return evalSha(sha, keys.size(), keysAndArgs);
+            }
+        });
+    }
+
+    /**
+     * 创建一个批量执行，所有调用在一次pipeline中提交
+     */
+    public Batch batch() {
+        return new Batch();
+    }
+
+    public class Batch {
+        private final List<byte[]> shas = new ArrayList<>();
+        private final List<Integer> numKeys = new ArrayList<>();
+        private final List<byte[][]> keysAndArgs = new ArrayList<>();
+
+        public Batch add(String name, List<String> keys, String... args) {
+            shas.add(sha(name));
+            numKeys.add(keys.size());
+            keysAndArgs.add(keysAndArgs(keys, args));
+            return this;
+        }
+
+        public int size() {
+            return shas.size();
+        }
+
+        /**
+         * @return 每个调用的返回值，顺序与添加顺序一致
+         */
+        public List<Object> execute() {
+            if (shas.isEmpty()) {
+                return new ArrayList<>();
+            }
+            batchSize.record(shas.size());
+            return batchTimer.record(() -> {
+                try {
+                    return pipeline();
+                } catch (RuntimeException e) {
+                    if (!isNoScript(e)) {
+                        throw e;
+                    }
+                    //脚本缓存被清空时所有EVALSHA都会失败，没有产生副作用，重新加载后整批重试
+                    reload();
+                    return pipeline();
+                }
+            });
+        }
+
+        private List<Object> pipeline() {
+            return stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (int i = 0; i < shas.size(); i++) {
+                    connection.evalSha(shas.get(i), ReturnType.INTEGER, numKeys.get(i), keysAndArgs.get(i));
+                }
+                return null;
+            });
+        }
+    }
+
+    private void reload() {
+        reloads.increment();
+        loadAll();
+    }
+
+    private Timer histogram(Timer.Builder builder) {
+        return builder.publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofNanos(100_000))
+                .maximumExpectedValue(Duration.ofSeconds(1))
+                .register(meterRegistry);
+    }
+
+    private Long evalSha(byte[] sha, int numKeys, byte[][] keysAndArgs) {
+        return stringRedisTemplate.execute((RedisCallback<Long>) connection ->
+                connection.evalSha(sha, ReturnType.INTEGER, numKeys, keysAndArgs));
+    }
+
+    private byte[] sha(String name) {
+        byte[][] script = scripts.get(name);
+        if (script == null) {
+            throw new IllegalArgumentException("lua脚本不存在: " + name);
+        }
+        return script[1];
+    }
+
+    private static byte[][] keysAndArgs(List<String> keys, String[] args) {
+        byte[][] bytes = new byte[keys.size() + args.length][];
+        int i = 0;
+        for (String key : keys) {
+            bytes[i++] = key.getBytes(StandardCharsets.UTF_8);
+        }
+        for (String arg : args) {
+            bytes[i++] = arg.getBytes(StandardCharsets.UTF_8);
+        }
+        return bytes;
+    }
+
+    private static boolean isNoScript(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
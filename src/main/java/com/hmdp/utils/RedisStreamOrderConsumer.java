@@ -0,0 +1,326 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.TransactionException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * 消费redis stream中的秒杀订单。
+ * 使用消费者组，处理成功后XACK；启动或出错时先处理自己pending-list中未确认的消息，
+ * 并定期把其他宕机消费者长时间未确认的消息认领过来。
+ * pending-list重试按指数退避，redis或数据库不可用导致的失败不计入消息的失败次数，
+ * 消息自身失败达到次数并且超过drop-after时间后才放弃
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.seckill.order-queue", havingValue = "stream")
+public class RedisStreamOrderConsumer {
+    private static final long MIN_BACKOFF = 20;
+    private static final long MAX_BACKOFF = 2000;
+
+    @Resource
+    private VoucherOrderServiceImpl voucherOrderService;
+    @Resource
+    private SeckillOrderStatus orderStatus;
+    @Resource
+    private SeckillStockRouter stockRouter;
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String streamKey;
+    private final String group;
+    private final String consumerPrefix;
+    private final int concurrency;
+    private final boolean batch;
+    private final int batchSize;
+    private final Duration block;
+    private final Duration claimIdle;
+    private final int maxFailures;
+    private final long dropAfter;
+    private ExecutorService executor;
+    private volatile boolean running = true;
+
+    public RedisStreamOrderConsumer(StringRedisTemplate stringRedisTemplate,
+                                    @Value("${hmdp.seckill.stream.key:stream.orders}") String streamKey,
+                                    @Value("${hmdp.seckill.stream.group:g1}") String group,
+                                    @Value("${hmdp.seckill.stream.concurrency:1}") int concurrency,
+                                    @Value("${hmdp.seckill.consumer.mode:single}") String mode,
+                                    @Value("${hmdp.seckill.consumer.batch-size:100}") int batchSize,
+                                    @Value("${hmdp.seckill.stream.block:2000}") long block,
+                                    @Value("${hmdp.seckill.stream.claim-idle:60000}") long claimIdle,
+                                    @Value("${hmdp.seckill.stream.max-failures:5}") int maxFailures,
+                                    @Value("${hmdp.seckill.stream.drop-after:30000}") long dropAfter,
+                                    @Value("${server.port:8080}") int port) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.streamKey = streamKey;
+        this.group = group;
+        this.concurrency = Math.max(1, concurrency);
+        this.batch = "batch".equals(mode);
+        this.batchSize = batchSize;
+        this.block = Duration.ofMillis(block);
+        this.claimIdle = Duration.ofMillis(claimIdle);
+        this.maxFailures = maxFailures;
+        this.dropAfter = dropAfter;
+        //消费者名称重启后保持不变，才能找回自己pending-list中的消息
+        this.consumerPrefix = hostName() + ":" + port;
+    }
+
+    @PostConstruct
+    private void init() {
+        createGroup();
+        executor = Executors.newFixedThreadPool(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            String name = consumerPrefix + "-" + i;
+            executor.submit(() -> consume(name));
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        executor.shutdownNow();
+    }
+
+    private void consume(String name) {
+        Consumer consumer = Consumer.from(group, name);
+        //先处理上次没确认的消息
+        handlePendingList(consumer);
+        long lastClaim = System.currentTimeMillis();
+        while (running) {
+            try {
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(consumer,
+                        StreamReadOptions.empty().count(batchSize).block(block),
+                        StreamOffset.create(streamKey, ReadOffset.lastConsumed()));
+                if (records != null && !records.isEmpty()) {
+                    handle(records);
+                }
+                if (System.currentTimeMillis() - lastClaim > claimIdle.toMillis()) {
+                    lastClaim = System.currentTimeMillis();
+                    if (claimIdleMessages(name)) {
+                        handlePendingList(consumer);
+                    }
+                }
+            } catch (Exception e) {
+                if (!running) {
+                    return;
+                }
+                log.error("处理stream订单异常", e);
+                handlePendingList(consumer);
+            }
+        }
+    }
+
+    private void handlePendingList(Consumer consumer) {
+        //消息自身处理失败的记录，pending-list处理完之前一直有效
+        Map<RecordId, Failure> failures = new HashMap<>();
+        long backoff = 0;
+        while (running) {
+            List<MapRecord<String, Object, Object>> records = null;
+            try {
+                //出错后逐条处理，找出失败的那一条
+                records = stringRedisTemplate.opsForStream().read(consumer,
+                        StreamReadOptions.empty().count(backoff == 0 && failures.isEmpty() ? batchSize : 1),
+                        StreamOffset.create(streamKey, ReadOffset.from("0")));
+                if (records == null || records.isEmpty()) {
+                    return;
+                }
+                dropPoisonMessages(records, failures);
+                if (!records.isEmpty()) {
+                    handle(records);
+                    records.forEach(record -> failures.remove(record.getId()));
+                }
+                backoff = 0;
+            } catch (Exception e) {
+                if (isInfrastructureFailure(e)) {
+                    log.error("处理stream pending订单异常,等待redis或数据库恢复", e);
+                } else {
+                    log.error("处理stream pending订单异常", e);
+                    if (records != null) {
+                        long now = System.currentTimeMillis();
+                        for (MapRecord<String, Object, Object> record : records) {
+                            failures.computeIfAbsent(record.getId(), id -> new Failure(now)).count++;
+                        }
+                    }
+                }
+                backoff = backoff == 0 ? MIN_BACKOFF : Math.min(backoff * 2, MAX_BACKOFF);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * redis、数据库连接或事务不可用，与消息内容无关，换一条消息也会失败。
+     * 违反约束说明消息本身的数据有问题，计入失败次数
+     */
+    private static boolean isInfrastructureFailure(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof DataIntegrityViolationException) {
+                return false;
+            }
+            if (t instanceof DataAccessException || t instanceof TransactionException
+                    || t instanceof org.redisson.client.RedisException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void handle(List<MapRecord<String, Object, Object>> records) {
+        List<VoucherOrder> orders = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            orders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+        }
+        if (batch) {
+            voucherOrderService.handleVoucherOrderBatch(orders);
+        } else {
+            for (VoucherOrder order : orders) {
+                voucherOrderService.handleVoucherOrder(order);
+            }
+        }
+        stringRedisTemplate.opsForStream().acknowledge(streamKey, group,
+                records.stream().map(MapRecord::getId).toArray(RecordId[]::new));
+    }
+
+    /**
+     * 自身多次处理失败并且超过drop-after仍未成功的消息不再重试：没有落库的订单标记失败，释放用户的资格并回补redis库存，然后确认
+     */
+    private void dropPoisonMessages(List<MapRecord<String, Object, Object>> records, Map<RecordId, Failure> failures) {
+        long now = System.currentTimeMillis();
+        List<RecordId> poison = new ArrayList<>();
+        List<VoucherOrder> dropped = new ArrayList<>();
+        records.removeIf(record -> {
+            Failure failure = failures.get(record.getId());
+            if (failure == null || failure.count < maxFailures || now - failure.firstAt < dropAfter) {
+                return false;
+            }
+            log.error("订单消息多次处理失败,放弃:" + record.getValue());
+            poison.add(record.getId());
+            VoucherOrder order = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+            if (order.getId() != null && order.getUserId() != null && order.getVoucherId() != null) {
+                dropped.add(order);
+            }
+            return true;
+        });
+        if (poison.isEmpty()) {
+            return;
+        }
+        releaseDropped(dropped);
+        stringRedisTemplate.opsForStream().acknowledge(streamKey, group, poison.toArray(new RecordId[0]));
+        poison.forEach(failures::remove);
+    }
+
+    private void releaseDropped(List<VoucherOrder> dropped) {
+        if (dropped.isEmpty()) {
+            return;
+        }
+        //处理失败之前可能已经提交了事务，已经落库的订单不释放
+        Set<Long> persisted = voucherOrderService.listByIds(
+                dropped.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                .stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        List<VoucherOrder> lost = new ArrayList<>(dropped.size());
+        for (VoucherOrder order : dropped) {
+            if (persisted.contains(order.getId())) {
+                orderStatus.created(order.getId());
+            } else {
+                lost.add(order);
+                orderStatus.failed(order.getId(), "订单处理失败");
+            }
+        }
+        if (!lost.isEmpty()) {
+            stockRouter.releaseBatch(lost);
+            lost.stream().map(VoucherOrder::getVoucherId).distinct().forEach(soldOutRegistry::clear);
+        }
+    }
+
+    /**
+     * 认领其他消费者长时间未确认的消息
+     * @return 是否认领到消息
+     */
+    private boolean claimIdleMessages(String name) {
+        PendingMessages pending = stringRedisTemplate.opsForStream()
+                .pending(streamKey, group, Range.unbounded(), (long) batchSize);
+        List<RecordId> ids = new ArrayList<>();
+        for (PendingMessage message : pending) {
+            if (!message.getConsumerName().startsWith(consumerPrefix)
+                    && message.getElapsedTimeSinceLastDelivery().compareTo(claimIdle) >= 0) {
+                ids.add(message.getId());
+            }
+        }
+        if (ids.isEmpty()) {
+            return false;
+        }
+        List<RecordId> claimed = stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection ->
+                connection.streamCommands().xClaimJustId(streamKey.getBytes(StandardCharsets.UTF_8), group, name,
+                        RedisStreamCommands.XClaimOptions.minIdle(claimIdle).ids(ids)));
+        log.info("认领其他消费者的订单消息:" + claimed);
+        return claimed != null && !claimed.isEmpty();
+    }
+
+    private void createGroup() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands()
+                    .xGroupCreate(streamKey.getBytes(StandardCharsets.UTF_8), group, ReadOffset.from("0"), true));
+        } catch (DataAccessException e) {
+            //BUSYGROUP 消费者组已经存在
+            log.debug("stream消费者组已存在:" + group);
+        }
+    }
+
+    private static class Failure {
+        //第一次因消息自身失败的时间
+        private final long firstAt;
+        private int count;
+
+        Failure(long firstAt) {
+            this.firstAt = firstAt;
+        }
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+}
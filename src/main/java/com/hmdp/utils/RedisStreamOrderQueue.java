@@ -0,0 +1,47 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 基于redis stream的订单队列，seckill.lua扣库存成功时直接XADD，预扣和入队不会不一致
+ */
+@Component
+@ConditionalOnProperty(name = "hmdp.seckill.order-queue", havingValue = "stream")
+public class RedisStreamOrderQueue implements SeckillOrderQueue {
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String streamKey;
+    private final long maxLen;
+
+    public RedisStreamOrderQueue(StringRedisTemplate stringRedisTemplate,
+                                 @Value("${hmdp.seckill.stream.key:stream.orders}") String streamKey,
+                                 @Value("${hmdp.seckill.stream.max-len:1000000}") long maxLen) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.streamKey = streamKey;
+        this.maxLen = maxLen;
+    }
+
+    @Override
+    public String streamKey() {
+        return streamKey;
+    }
+
+    /**
+     * 正常下单由lua脚本入队，这里用于补发等需要单独投递的场景
+     */
+    @Override
+    public void send(VoucherOrder order) {
+        Map<String, String> fields = new HashMap<>(4);
+        fields.put("id", order.getId().toString());
+        fields.put("userId", order.getUserId().toString());
+        fields.put("voucherId", order.getVoucherId().toString());
+        stringRedisTemplate.opsForStream().add(streamKey, fields);
+        stringRedisTemplate.opsForStream().trim(streamKey, maxLen);
+    }
+}
@@ -12,9 +12,11 @@ import java.util.concurrent.TimeUnit;
 
 public class RefreshTokenInterceptor implements HandlerInterceptor {
     private StringRedisTemplate stringRedisTemplate;
+    private HotKeyDetector hotKeys;
 
-    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate) {
+    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate, HotKeyDetector hotKeys) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.hotKeys = hotKeys;
     }
 
     @Override
@@ -26,9 +28,17 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         if( token== null){
             return true;
         }
+        String key = RedisConstants.LOGIN_USER_KEY + token;
+        hotKeys.record(key);
+        //热点token使用本地固定的用户，有效期内不访问redis
+        Object pinned = hotKeys.getPinned(key);
+        if (pinned instanceof UserDTO) {
+            UserHolder.saveUser((UserDTO) pinned);
+            return true;
+        }
         //2.获取session中用户
         //Object user = session.getAttribute("user");
-        Map<Object, Object> map = stringRedisTemplate.opsForHash().entries(RedisConstants.LOGIN_USER_KEY+token);
+        Map<Object, Object> map = stringRedisTemplate.opsForHash().entries(key);
         //3.判断用户是否存在
         if(map.isEmpty()) {
             return true;
@@ -36,8 +46,9 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         UserDTO userDTO = BeanUtil.fillBeanWithMap(map, new UserDTO(), false);
         //5.存在，保存用于信息到threadlocal,使得其他controller能够使用
         UserHolder.saveUser(userDTO);
+        hotKeys.pin(key, userDTO);
         //刷新token有效期
-        stringRedisTemplate.expire(RedisConstants.LOGIN_USER_KEY+token,30, TimeUnit.MINUTES);
+        stringRedisTemplate.expire(key,30, TimeUnit.MINUTES);
         //6.放行
         return true;
     }
@@ -0,0 +1,194 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 秒杀准入控制，在访问库存之前按券限流。
+ * 先过本地令牌桶(每个节点每张券每秒rate个，最多积攒burst个)，
+ * 再从redis的集群滑动窗口一次领取一批许可在本地消耗，剩余不到一半时由一个线程提前去领，窗口满了本秒内不再访问redis。
+ * 领取在锁外进行，其他线程继续消耗剩余许可；没用完的许可留到下一秒继续用(滑动窗口里上一秒的计数仍然算数)，再往后作废
+ */
+@Slf4j
+@Component
+public class SeckillAdmission {
+    private static final int GATE_CACHE_SIZE = 10000;
+
+    private static final String ADMISSION_SCRIPT = "admission";
+
+    private final RedisScriptRegistry scriptRegistry;
+    private final boolean enabled;
+    private final double localRate;
+    private final double localBurst;
+    private final long clusterRate;
+    private final int lease;
+    //voucherId -> 本地准入状态
+    private final Map<Long, Gate> gates = new ConcurrentHashMap<>();
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder shedLocal = new LongAdder();
+    private final LongAdder shedCluster = new LongAdder();
+
+    public SeckillAdmission(RedisScriptRegistry scriptRegistry,
+                            @Value("${hmdp.seckill.admission.enabled:true}") boolean enabled,
+                            @Value("${hmdp.seckill.admission.local-rate:2000}") double localRate,
+                            @Value("${hmdp.seckill.admission.local-burst:2000}") double localBurst,
+                            @Value("${hmdp.seckill.admission.cluster-rate:10000}") long clusterRate,
+                            @Value("${hmdp.seckill.admission.lease:50}") int lease) {
+        this.scriptRegistry = scriptRegistry;
+        this.enabled = enabled;
+        this.localRate = localRate;
+        this.localBurst = Math.max(1, localBurst);
+        this.clusterRate = clusterRate;
+        this.lease = Math.max(1, lease);
+    }
+
+    /**
+     * @return false表示需要拒绝这次请求
+     */
+    public boolean tryAdmit(Long voucherId) {
+        if (!enabled) {
+            return true;
+        }
+        Gate gate = gates.get(voucherId);
+        if (gate == null) {
+            if (gates.size() >= GATE_CACHE_SIZE) {
+                gates.clear();
+            }
+            gate = gates.computeIfAbsent(voucherId, k -> new Gate());
+        }
+        long now = System.currentTimeMillis();
+        if (!gate.takeToken(now)) {
+            shedLocal.increment();
+            return false;
+        }
+        if (clusterRate > 0 && !gate.takePermit(voucherId, now)) {
+            shedCluster.increment();
+            return false;
+        }
+        admitted.increment();
+        return true;
+    }
+
+    public long getAdmitted() {
+        return admitted.sum();
+    }
+
+    public long getShedLocal() {
+        return shedLocal.sum();
+    }
+
+    public long getShedCluster() {
+        return shedCluster.sum();
+    }
+
+    /**
+     * 从集群滑动窗口领取一批许可
+     */
+    private int lease(Long voucherId, long now) {
+        long second = now / 1000;
+        String prefix = RedisConstants.SECKILL_ADMIT_KEY + "{" + voucherId + "}:";
+        try {
+            Long granted = scriptRegistry.execute(ADMISSION_SCRIPT,
+                    Arrays.asList(prefix + second, prefix + (second - 1)),
+                    String.valueOf(clusterRate), String.valueOf(lease), String.valueOf((now % 1000) / 1000.0));
+            return granted == null ? 0 : granted.intValue();
+        } catch (RuntimeException e) {
+            //限流不可用时放行，由库存脚本兜底
+            log.error("领取秒杀准入许可失败", e);
+            return lease;
+        }
+    }
+
+    private class Gate {
+        private double tokens = localBurst;
+        private long refillAt = System.currentTimeMillis();
+        //本地剩余的集群许可
+        private final AtomicLong permits = new AtomicLong();
+        //同一时刻只有一个线程去redis领取
+        private final AtomicBoolean leasing = new AtomicBoolean();
+        //最近一次领取许可的秒，许可用到下一秒结束
+        private volatile long leaseSecond = Long.MIN_VALUE / 2;
+        //集群窗口已满的秒
+        private volatile long deniedSecond = -1;
+
+        synchronized boolean takeToken(long now) {
+            if (now > refillAt) {
+                tokens = Math.min(localBurst, tokens + (now - refillAt) * localRate / 1000);
+                refillAt = now;
+            }
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        boolean takePermit(Long voucherId, long now) {
+            long s = now / 1000;
+            if (s <= leaseSecond + 1) {
+                long left = take();
+                if (left >= 0) {
+                    if (left <= lease / 2) {
+                        //剩余不多时提前补充，其他线程不用等
+                        refill(voucherId, now, s);
+                    }
+                    return true;
+                }
+            }
+            //没有可用许可，其他线程正在领取时直接拒绝
+            return refill(voucherId, now, s) && take() >= 0;
+        }
+
+        /**
+         * @return 扣减后剩余的许可数，-1表示没有许可
+         */
+        private long take() {
+            for (; ; ) {
+                long p = permits.get();
+                if (p <= 0) {
+                    return -1;
+                }
+                if (permits.compareAndSet(p, p - 1)) {
+                    return p - 1;
+                }
+            }
+        }
+
+        /**
+         * 只有抢到领取资格的线程访问redis
+         *
+         * @return 是否领到了许可
+         */
+        private boolean refill(Long voucherId, long now, long s) {
+            if (deniedSecond == s || !leasing.compareAndSet(false, true)) {
+                return false;
+            }
+            try {
+                int granted = lease(voucherId, now);
+                if (granted <= 0) {
+                    deniedSecond = s;
+                    return false;
+                }
+                if (s > leaseSecond + 1) {
+                    //之前的许可已经过期，直接覆盖
+                    permits.set(granted);
+                } else {
+                    permits.addAndGet(granted);
+                }
+                leaseSecond = s;
+                return true;
+            } finally {
+                leasing.set(false);
+            }
+        }
+    }
+}
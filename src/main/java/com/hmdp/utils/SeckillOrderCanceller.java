@@ -0,0 +1,59 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 定时取消超时未支付的秒杀订单：从超时队列批量取出到期的订单，
+ * 数据库中改为已取消并归还库存，再归还redis中的库存和下单资格。
+ * 多个节点同时处理同一批订单时由数据库行锁保证只取消一次。
+ * 默认关闭：只有接入验签后调用payVoucherOrder的支付回调之后才能开启，否则所有订单都会在超时后被取消
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.seckill.cancel.enabled", havingValue = "true")
+public class SeckillOrderCanceller {
+    @Resource
+    private SeckillOrderDeadline orderDeadline;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Value("${hmdp.seckill.cancel.batch-size:200}")
+    private int batchSize;
+
+    private final LongAdder canceled = new LongAdder();
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.cancel.interval:1000}")
+    public void cancelExpired() {
+        try {
+            while (true) {
+                List<Long> due = orderDeadline.due(batchSize);
+                if (due.isEmpty()) {
+                    return;
+                }
+                List<VoucherOrder> orders = voucherOrderService.cancelVoucherOrders(due);
+                canceled.add(orders.size());
+                if (!orders.isEmpty()) {
+                    log.debug("取消超时未支付订单{}个", orders.size());
+                }
+                if (due.size() < batchSize) {
+                    return;
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("取消超时订单失败", e);
+        }
+    }
+
+    public long getCanceled() {
+        return canceled.sum();
+    }
+}
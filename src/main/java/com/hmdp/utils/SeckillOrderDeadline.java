@@ -0,0 +1,71 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * 未支付订单的超时队列，zset成员为订单id，分数为支付截止时间
+ */
+@Component
+public class SeckillOrderDeadline {
+    private final StringRedisTemplate stringRedisTemplate;
+    private final long payTimeout;
+    //和SeckillOrderCanceller使用同一个开关，关闭时不加入超时队列
+    private final boolean enabled;
+
+    public SeckillOrderDeadline(StringRedisTemplate stringRedisTemplate,
+                                @Value("${hmdp.seckill.cancel.pay-timeout:900000}") long payTimeout,
+                                @Value("${hmdp.seckill.cancel.enabled:false}") boolean enabled) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.payTimeout = payTimeout;
+        this.enabled = enabled;
+    }
+
+    /**
+     * 订单落库后加入超时队列，超时取消关闭时什么都不做
+     */
+    public void schedule(Collection<Long> orderIds) {
+        if (!enabled || orderIds.isEmpty()) {
+            return;
+        }
+        double deadline = System.currentTimeMillis() + payTimeout;
+        Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>(orderIds.size());
+        for (Long orderId : orderIds) {
+            tuples.add(new DefaultTypedTuple<>(orderId.toString(), deadline));
+        }
+        stringRedisTemplate.opsForZSet().add(RedisConstants.SECKILL_DEADLINE_KEY, tuples);
+    }
+
+    /**
+     * @return 已经超过支付截止时间的订单id，最多limit个
+     */
+    public List<Long> due(int limit) {
+        Set<String> members = stringRedisTemplate.opsForZSet()
+                .rangeByScore(RedisConstants.SECKILL_DEADLINE_KEY, 0, System.currentTimeMillis(), 0, limit);
+        if (members == null) {
+            return Collections.emptyList();
+        }
+        return members.stream().map(Long::valueOf).collect(Collectors.toList());
+    }
+
+    /**
+     * 已支付或已取消的订单移出超时队列
+     */
+    public void remove(Collection<Long> orderIds) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.opsForZSet().remove(RedisConstants.SECKILL_DEADLINE_KEY,
+                orderIds.stream().map(String::valueOf).toArray());
+    }
+}
@@ -0,0 +1,19 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+
+/**
+ * 秒杀订单队列，通过 hmdp.seckill.order-queue 选择 rabbitmq 或 redis stream 实现
+ */
+public interface SeckillOrderQueue {
+
+    /**
+     * lua脚本扣减库存时同时写入的stream key，扣库存和入队在一个脚本里原子完成
+     * @return null表示扣库存成功之后再调用send投递
+     */
+    default String streamKey() {
+        return null;
+    }
+
+    void send(VoucherOrder order);
+}
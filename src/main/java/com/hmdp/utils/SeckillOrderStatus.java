@@ -0,0 +1,177 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.OrderStatusDTO;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 秒杀订单的异步处理状态。每个订单一个小hash(s:状态 u:用户id r:失败原因)，带过期时间；
+ * 消费者处理完后写入最终状态并通过发布订阅通知，等待中的长轮询请求立即返回。
+ * 排队时同时在券的索引hash中记录 用户id -> 订单id，库存核对据此判断用户的订单是否还在队列中
+ */
+@Component
+public class SeckillOrderStatus implements MessageListener {
+    public static final String PENDING = "PENDING";
+    public static final String CREATED = "CREATED";
+    public static final String FAILED = "FAILED";
+
+    private static final String STATUS_SCRIPT = "order_status";
+    private static final byte[] STATE_FIELD = "s".getBytes(StandardCharsets.UTF_8);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisScriptRegistry scriptRegistry;
+    //orderId -> 本节点上等待该订单结果的回调
+    private final Map<Long, Set<Consumer<OrderStatusDTO>>> waiters = new ConcurrentHashMap<>();
+
+    public SeckillOrderStatus(StringRedisTemplate stringRedisTemplate, RedisScriptRegistry scriptRegistry,
+                              RedisMessageListenerContainer container) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.scriptRegistry = scriptRegistry;
+        container.addMessageListener(this, new ChannelTopic(RedisConstants.SECKILL_STATUS_CHANNEL));
+    }
+
+    public void pending(Long orderId, Long userId, Long voucherId) {
+        scriptRegistry.execute(STATUS_SCRIPT,
+                Arrays.asList(RedisConstants.SECKILL_STATUS_KEY + orderId, RedisConstants.SECKILL_BUYER_KEY + voucherId),
+                args(orderId, PENDING, "", userId.toString()));
+    }
+
+    public void created(Long orderId) {
+        write(orderId, CREATED, "", "");
+    }
+
+    public void failed(Long orderId, String reason) {
+        write(orderId, FAILED, reason, "");
+    }
+
+    /**
+     * 批量写入最终状态，一次pipeline提交
+     */
+    public void finish(Collection<Long> createdIds, Map<Long, String> failed) {
+        if (createdIds.isEmpty() && failed.isEmpty()) {
+            return;
+        }
+        RedisScriptRegistry.Batch batch = scriptRegistry.batch();
+        for (Long orderId : createdIds) {
+            batch.add(STATUS_SCRIPT, key(orderId), args(orderId, CREATED, "", ""));
+        }
+        failed.forEach((orderId, reason) -> batch.add(STATUS_SCRIPT, key(orderId), args(orderId, FAILED, reason, "")));
+        batch.execute();
+    }
+
+    /**
+     * @return 状态已过期或不存在时返回null
+     */
+    public OrderStatusDTO get(Long orderId, Long userId) {
+        Map<Object, Object> map = stringRedisTemplate.opsForHash().entries(RedisConstants.SECKILL_STATUS_KEY + orderId);
+        if (map.isEmpty()) {
+            return null;
+        }
+        if (!userId.toString().equals(map.get("u"))) {
+            //不是自己的订单
+            return null;
+        }
+        return new OrderStatusDTO(orderId, (String) map.get("s"), (String) map.get("r"));
+    }
+
+    /**
+     * 查询用户在这张券上的订单是否还在排队，索引或状态已过期的用户视为不在排队
+     * @return 订单状态仍为PENDING的用户id
+     */
+    public Set<String> pendingUsers(Long voucherId, List<String> userIds) {
+        if (userIds.isEmpty()) {
+            return Collections.emptySet();
+        }
+        List<Object> orderIds = stringRedisTemplate.opsForHash()
+                .multiGet(RedisConstants.SECKILL_BUYER_KEY + voucherId, new ArrayList<>(userIds));
+        List<String> users = new ArrayList<>();
+        List<String> statusKeys = new ArrayList<>();
+        for (int i = 0; i < userIds.size(); i++) {
+            Object orderId = orderIds.get(i);
+            if (orderId != null) {
+                users.add(userIds.get(i));
+                statusKeys.add(RedisConstants.SECKILL_STATUS_KEY + orderId);
+            }
+        }
+        if (statusKeys.isEmpty()) {
+            return Collections.emptySet();
+        }
+        List<Object> states = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : statusKeys) {
+                connection.hGet(key.getBytes(StandardCharsets.UTF_8), STATE_FIELD);
+            }
+            return null;
+        });
+        Set<String> pending = new HashSet<>();
+        for (int i = 0; i < users.size(); i++) {
+            if (PENDING.equals(states.get(i))) {
+                pending.add(users.get(i));
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * 注册订单最终状态的回调，需要在查询状态之前注册，避免错过通知
+     */
+    public void await(Long orderId, Consumer<OrderStatusDTO> callback) {
+        waiters.computeIfAbsent(orderId, k -> ConcurrentHashMap.newKeySet()).add(callback);
+    }
+
+    public void cancelAwait(Long orderId, Consumer<OrderStatusDTO> callback) {
+        waiters.computeIfPresent(orderId, (k, set) -> {
+            set.remove(callback);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        //orderId:state:reason
+        String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(":", 3);
+        Long orderId = Long.valueOf(parts[0]);
+        Set<Consumer<OrderStatusDTO>> callbacks = waiters.remove(orderId);
+        if (callbacks == null) {
+            return;
+        }
+        String reason = parts.length > 2 && !parts[2].isEmpty() ? parts[2] : null;
+        OrderStatusDTO status = new OrderStatusDTO(orderId, parts[1], reason);
+        for (Consumer<OrderStatusDTO> callback : callbacks) {
+            callback.accept(status);
+        }
+    }
+
+    private void write(Long orderId, String state, String reason, String userId) {
+        scriptRegistry.execute(STATUS_SCRIPT, key(orderId), args(orderId, state, reason, userId));
+    }
+
+    private static List<String> key(Long orderId) {
+        return Collections.singletonList(RedisConstants.SECKILL_STATUS_KEY + orderId);
+    }
+
+    private static String[] args(Long orderId, String state, String reason, String userId) {
+        return new String[]{state, reason, ttlSeconds(), userId, RedisConstants.SECKILL_STATUS_CHANNEL, orderId.toString()};
+    }
+
+    private static String ttlSeconds() {
+        return String.valueOf(TimeUnit.MINUTES.toSeconds(RedisConstants.SECKILL_STATUS_TTL));
+    }
+}
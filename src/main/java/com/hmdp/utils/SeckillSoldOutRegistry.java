@@ -0,0 +1,82 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 本地售罄标记：lua脚本返回库存不足后在本机标记，并通过redis发布订阅通知其他节点，
+ * 之后的请求在本地直接拒绝，不再访问redis
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutRegistry implements MessageListener {
+    private static final String SOLD_OUT = "+";
+    private static final String RESTOCK = "-";
+    private final StringRedisTemplate stringRedisTemplate;
+    //voucherId -> 标记时间
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+    //标记的有效期，过期后放一个请求去redis重新确认，防止漏掉补货消息后一直拒绝
+    private final long ttlMillis;
+
+    public SeckillSoldOutRegistry(StringRedisTemplate stringRedisTemplate,
+                                  RedisMessageListenerContainer container,
+                                  @Value("${hmdp.seckill.sold-out-ttl:10000}") long ttlMillis) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.ttlMillis = ttlMillis;
+        container.addMessageListener(this, new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        Long markedAt = soldOut.get(voucherId);
+        if (markedAt == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - markedAt > ttlMillis) {
+            soldOut.remove(voucherId, markedAt);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 标记售罄并广播给其他节点
+     */
+    public void markSoldOut(Long voucherId) {
+        if (soldOut.put(voucherId, System.currentTimeMillis()) == null) {
+            stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + voucherId);
+        }
+    }
+
+    /**
+     * 库存回补后清除标记并广播给其他节点
+     */
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, RESTOCK + voucherId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            Long voucherId = Long.valueOf(body.substring(1));
+            if (body.startsWith(SOLD_OUT)) {
+                soldOut.put(voucherId, System.currentTimeMillis());
+            } else {
+                soldOut.remove(voucherId);
+            }
+        } catch (RuntimeException e) {
+            log.error("售罄消息格式错误:{}", body);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * 定时核对redis中的秒杀库存/下单用户与数据库中的库存/订单。
+ * 正常情况下 redis库存+redis下单用户数 == 数据库库存+有效订单数，两边的下单用户数只差还在队列中的订单；
+ * 用SCAN分批遍历库存key，每批用pipeline读redis、用聚合sql读数据库，批之间暂停，避免占用redis和数据库。
+ * 开启修复时，只处理连续两轮都在redis中有资格但数据库没有订单的用户：释放资格并回补库存。
+ * 订单仍在outbox、stream或MQ中排队(状态为PENDING)的用户不释放，只有状态已结束或已过期的才释放
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.seckill.reconcile.enabled", havingValue = "true", matchIfMissing = true)
+public class SeckillStockReconciler {
+    //已取消的订单不占用库存
+    private static final int STATUS_CANCELED = 4;
+    private static final int USER_BATCH = 500;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillStockRouter stockRouter;
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+    @Resource
+    private SeckillOrderStatus orderStatus;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Value("${hmdp.seckill.reconcile.chunk-size:100}")
+    private int chunkSize;
+    @Value("${hmdp.seckill.reconcile.pause:50}")
+    private long pauseMillis;
+    @Value("${hmdp.seckill.reconcile.repair:false}")
+    private boolean repair;
+
+    //上一轮发现的 voucherId -> redis中有资格但数据库没有订单的用户
+    private Map<Long, Set<String>> lastStale = new HashMap<>();
+
+    //累计指标
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder checkedVouchers = new LongAdder();
+    private final LongAdder repairedOrders = new LongAdder();
+    //最近一轮的指标
+    private final AtomicLong driftedVouchers = new AtomicLong();
+    private final AtomicLong pendingOrders = new AtomicLong();
+    private final AtomicLong stockDrift = new AtomicLong();
+    private final AtomicLong lastRunMillis = new AtomicLong();
+
+    @Scheduled(initialDelayString = "${hmdp.seckill.reconcile.interval:60000}",
+            fixedDelayString = "${hmdp.seckill.reconcile.interval:60000}")
+    public void reconcile() {
+        long begin = System.currentTimeMillis();
+        Map<Long, Set<String>> stale = new HashMap<>();
+        long[] totals = new long[3];
+        Set<Long> seen = new HashSet<>();
+        List<Long> chunk = new ArrayList<>(chunkSize);
+        ScanOptions options = ScanOptions.scanOptions()
+                .match(RedisConstants.SECKILL_STOCK_KEY + "*").count(chunkSize).build();
+        try (Cursor<byte[]> cursor = stringRedisTemplate.executeWithStickyConnection(
+                (RedisCallback<Cursor<byte[]>>) connection -> connection.scan(options))) {
+            while (cursor.hasNext()) {
+                Long voucherId = parseVoucherId(new String(cursor.next(), StandardCharsets.UTF_8));
+                //分片模式下同一张券有多个库存key
+                if (voucherId == null || !seen.add(voucherId)) {
+                    continue;
+                }
+                chunk.add(voucherId);
+                if (chunk.size() >= chunkSize) {
+                    checkChunk(chunk, stale, totals);
+                    chunk.clear();
+                    Thread.sleep(pauseMillis);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                checkChunk(chunk, stale, totals);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Exception e) {
+            log.error("秒杀库存核对失败", e);
+            return;
+        }
+        lastStale = stale;
+        runs.increment();
+        checkedVouchers.add(seen.size());
+        driftedVouchers.set(totals[0]);
+        pendingOrders.set(totals[1]);
+        stockDrift.set(totals[2]);
+        lastRunMillis.set(System.currentTimeMillis() - begin);
+        log.debug("秒杀库存核对完成, 券数:{}, 不一致券数:{}, 耗时:{}ms", seen.size(), totals[0], lastRunMillis.get());
+    }
+
+    /**
+     * @param totals [不一致的券数, redis有资格但未落库的订单数, 库存总量偏差]
+     */
+    private void checkChunk(List<Long> voucherIds, Map<Long, Set<String>> stale, long[] totals) {
+        //pipeline读取所有分片的库存和下单用户数
+        List<Integer> shardCounts = new ArrayList<>(voucherIds.size());
+        for (Long voucherId : voucherIds) {
+            shardCounts.add(stockRouter.shardCount(voucherId));
+        }
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < voucherIds.size(); i++) {
+                int shards = shardCounts.get(i);
+                for (int s = 0; s < shards; s++) {
+                    connection.get(bytes(stockRouter.stockKey(voucherIds.get(i), s, shards)));
+                    connection.sCard(bytes(stockRouter.orderKey(voucherIds.get(i), s, shards)));
+                }
+            }
+            return null;
+        });
+        //一次查询库存，一次分组统计订单数
+        Map<Long, Integer> dbStock = seckillVoucherService.listByIds(voucherIds).stream()
+                .collect(Collectors.toMap(SeckillVoucher::getVoucherId, SeckillVoucher::getStock));
+        Map<Long, Long> dbOrders = new HashMap<>();
+        List<Map<String, Object>> counts = voucherOrderService.listMaps(new QueryWrapper<VoucherOrder>()
+                .select("voucher_id", "count(*) AS cnt")
+                .in("voucher_id", voucherIds)
+                .ne("status", STATUS_CANCELED)
+                .groupBy("voucher_id"));
+        for (Map<String, Object> row : counts) {
+            dbOrders.put(((Number) row.get("voucher_id")).longValue(), ((Number) row.get("cnt")).longValue());
+        }
+        int idx = 0;
+        for (int i = 0; i < voucherIds.size(); i++) {
+            Long voucherId = voucherIds.get(i);
+            int shards = shardCounts.get(i);
+            long redisStock = 0;
+            long redisBuyers = 0;
+            for (int s = 0; s < shards; s++) {
+                Object stock = values.get(idx++);
+                Object buyers = values.get(idx++);
+                redisStock += stock == null ? 0 : Long.parseLong(stock.toString());
+                redisBuyers += buyers == null ? 0 : ((Number) buyers).longValue();
+            }
+            Integer stock = dbStock.get(voucherId);
+            if (stock == null) {
+                continue;
+            }
+            long orders = dbOrders.getOrDefault(voucherId, 0L);
+            long lag = redisBuyers - orders;
+            long drift = (redisStock + redisBuyers) - (stock + orders);
+            if (lag == 0 && drift == 0) {
+                continue;
+            }
+            totals[0]++;
+            totals[1] += Math.max(lag, 0);
+            totals[2] += Math.abs(drift);
+            if (drift != 0 || lag < 0) {
+                log.warn("秒杀库存不一致, voucherId:{}, redis库存:{}, redis用户数:{}, 数据库库存:{}, 数据库订单数:{}",
+                        voucherId, redisStock, redisBuyers, stock, orders);
+            }
+            if (repair && lag > 0) {
+                repairStale(voucherId, shards, stale);
+            }
+        }
+    }
+
+    /**
+     * 找出redis中有资格但数据库没有订单的用户，上一轮也是同样状态的视为订单丢失，释放资格并回补库存
+     */
+    private void repairStale(Long voucherId, int shards, Map<Long, Set<String>> stale) {
+        Set<String> previous = lastStale.getOrDefault(voucherId, new HashSet<>());
+        Set<String> current = new HashSet<>();
+        int released = 0;
+        for (int s = 0; s < shards; s++) {
+            String orderKey = stockRouter.orderKey(voucherId, s, shards);
+            List<String> batch = new ArrayList<>(USER_BATCH);
+            try (Cursor<String> cursor = stringRedisTemplate.opsForSet()
+                    .scan(orderKey, ScanOptions.scanOptions().count(USER_BATCH).build())) {
+                while (cursor.hasNext()) {
+                    batch.add(cursor.next());
+                    if (batch.size() >= USER_BATCH) {
+                        released += releaseMissing(voucherId, s, shards, batch, previous, current);
+                        batch.clear();
+                    }
+                }
+            } catch (Exception e) {
+                log.error("扫描下单用户失败, key:" + orderKey, e);
+                return;
+            }
+            if (!batch.isEmpty()) {
+                released += releaseMissing(voucherId, s, shards, batch, previous, current);
+            }
+        }
+        if (!current.isEmpty()) {
+            stale.put(voucherId, current);
+        }
+        if (released > 0) {
+            repairedOrders.add(released);
+            soldOutRegistry.clear(voucherId);
+            log.warn("秒杀库存修复, voucherId:{}, 释放丢失订单的用户数:{}", voucherId, released);
+        }
+    }
+
+    private int releaseMissing(Long voucherId, int shard, int shards, List<String> users,
+                               Set<String> previous, Set<String> current) {
+        Set<String> ordered = voucherOrderService.query().select("user_id")
+                .eq("voucher_id", voucherId)
+                .in("user_id", users)
+                .ne("status", STATUS_CANCELED)
+                .list().stream()
+                .map(o -> o.getUserId().toString())
+                .collect(Collectors.toSet());
+        List<String> lost = new ArrayList<>();
+        for (String userId : users) {
+            if (ordered.contains(userId)) {
+                continue;
+            }
+            if (!previous.contains(userId)) {
+                //可能还在队列中，下一轮再确认
+                current.add(userId);
+            } else {
+                lost.add(userId);
+            }
+        }
+        if (lost.isEmpty()) {
+            return 0;
+        }
+        //积压时订单可能排队超过两轮，状态仍为PENDING的继续观察
+        Set<String> queued = orderStatus.pendingUsers(voucherId, lost);
+        if (!queued.isEmpty()) {
+            lost.removeAll(queued);
+            current.addAll(queued);
+        }
+        return lost.isEmpty() ? 0 : stockRouter.release(voucherId, lost, shard, shards);
+    }
+
+    private static Long parseVoucherId(String key) {
+        String id = key.substring(RedisConstants.SECKILL_STOCK_KEY.length());
+        if (id.startsWith("{")) {
+            //{券id:分片}
+            int end = id.indexOf(':');
+            id = end < 0 ? "" : id.substring(1, end);
+        }
+        try {
+            return Long.valueOf(id);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static byte[] bytes(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public long getRuns() {
+        return runs.sum();
+    }
+
+    public long getCheckedVouchers() {
+        return checkedVouchers.sum();
+    }
+
+    public long getRepairedOrders() {
+        return repairedOrders.sum();
+    }
+
+    public long getDriftedVouchers() {
+        return driftedVouchers.get();
+    }
+
+    public long getPendingOrders() {
+        return pendingOrders.get();
+    }
+
+    public long getStockDrift() {
+        return stockDrift.get();
+    }
+
+    public long getLastRunMillis() {
+        return lastRunMillis.get();
+    }
+}
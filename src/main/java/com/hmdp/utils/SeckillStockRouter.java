@@ -0,0 +1,324 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 秒杀库存在redis中的布局与扣减。
+ * 分片数为1时沿用 seckill:stock:券id / seckill:order:券id；
+ * 分片数大于1时库存拆到 seckill:stock:{券id:i}，下单用户拆到 seckill:order:{券id:i}，
+ * 同一分片的两个key用hash tag落在同一个slot，不同分片可以分布到集群的不同节点。
+ * 用户按id哈希固定到一个分片做一人一单判断，该分片库存不足时先占住用户再去其他分片扣库存，
+ * 占位期间同一用户的其他请求返回BUSY，而不是重复下单。
+ * 分片数保存在 tb_seckill_voucher.stock_shards，redis数据丢失后按数据库中的分片数恢复。
+ * stream订单队列在lua脚本里XADD，stream key和分片key不在同一个slot，redis集群下会CROSSSLOT，所以不能和分片一起使用。
+ */
+@Slf4j
+@Component
+public class SeckillStockRouter {
+    public static final int OK = 0;
+    public static final int NO_STOCK = 1;
+    public static final int DUPLICATE = 2;
+    private static final int RESERVED = 3;
+    public static final int NOT_STARTED = 4;
+    public static final int ENDED = 5;
+    public static final int NOT_WARMED = 6;
+    public static final int BUSY = 7;
+    private static final long SHARD_CACHE_MISS_TTL = TimeUnit.MINUTES.toMillis(1);
+    private static final int WINDOW_CACHE_SIZE = 10000;
+    private static final long[] NO_WINDOW = new long[0];
+
+    private static final String SECKILL_SCRIPT = "seckill";
+    private static final String TAKE_SCRIPT = "seckill_shard_take";
+    private static final String RELEASE_SCRIPT = "seckill_release";
+    private static final String UNRESERVE_SCRIPT = "seckill_unreserve";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisScriptRegistry scriptRegistry;
+    private final ISeckillVoucherService seckillVoucherService;
+    private final int defaultShards;
+    //voucherId -> 分片数，分片数创建后不变；数据库中没有的券过一段时间再确认一次
+    private final Map<Long, Integer> shardCache = new ConcurrentHashMap<>();
+    private final Map<Long, Long> shardMissAt = new ConcurrentHashMap<>();
+    //voucherId -> {开始毫秒, 结束毫秒}，用来在本地拒绝明显过早或已经结束的请求
+    private final Map<Long, long[]> windowCache = new ConcurrentHashMap<>();
+    //本机与redis时钟可能有偏差，只在超出容忍范围时本地拒绝，边界交给lua判断
+    private final long windowTolerance;
+    //写入订单stream时按该长度近似裁剪
+    private final long streamMaxLen;
+    //订单队列为stream时只允许不分片
+    private final boolean streamQueue;
+
+    public SeckillStockRouter(StringRedisTemplate stringRedisTemplate, RedisScriptRegistry scriptRegistry,
+                              ISeckillVoucherService seckillVoucherService,
+                              @Value("${hmdp.seckill.stock-shards:1}") int defaultShards,
+                              @Value("${hmdp.seckill.window-tolerance:1000}") long windowTolerance,
+                              @Value("${hmdp.seckill.stream.max-len:1000000}") long streamMaxLen,
+                              @Value("${hmdp.seckill.order-queue:rabbitmq}") String orderQueue) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.scriptRegistry = scriptRegistry;
+        this.seckillVoucherService = seckillVoucherService;
+        this.defaultShards = Math.max(1, defaultShards);
+        this.windowTolerance = windowTolerance;
+        this.streamMaxLen = streamMaxLen;
+        this.streamQueue = "stream".equals(orderQueue);
+        if (!isShardingAllowed(this.defaultShards)) {
+            throw new IllegalStateException("hmdp.seckill.order-queue=stream时hmdp.seckill.stock-shards只能为1");
+        }
+    }
+
+    public int getDefaultShards() {
+        return defaultShards;
+    }
+
+    /**
+     * @return 当前订单队列是否可以使用该分片数
+     */
+    public boolean isShardingAllowed(int shards) {
+        return !streamQueue || shards <= 1;
+    }
+
+    public int shardCount(Long voucherId) {
+        Integer cached = shardCache.get(voucherId);
+        if (cached != null) {
+            return cached;
+        }
+        Long missAt = shardMissAt.get(voucherId);
+        if (missAt != null && System.currentTimeMillis() - missAt < SHARD_CACHE_MISS_TTL) {
+            return 1;
+        }
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if (voucher == null) {
+            shardMissAt.put(voucherId, System.currentTimeMillis());
+            return 1;
+        }
+        return cacheShards(voucherId, voucher.getStockShards());
+    }
+
+    /**
+     * 记住从数据库读到的分片数
+     * @return 分片数，为空时按1处理
+     */
+    public int cacheShards(Long voucherId, Integer stockShards) {
+        int shards = stockShards == null ? 1 : Math.max(1, stockShards);
+        shardCache.put(voucherId, shards);
+        shardMissAt.remove(voucherId);
+        return shards;
+    }
+
+    public int homeShard(Long userId, int shards) {
+        if (shards <= 1) {
+            return 0;
+        }
+        //打散连续的用户id
+        long h = userId * 0x9E3779B97F4A7C15L;
+        return (int) Math.floorMod(h ^ (h >>> 32), (long) shards);
+    }
+
+    public String stockKey(Long voucherId, int shard, int shards) {
+        return shards <= 1 ? RedisConstants.SECKILL_STOCK_KEY + voucherId
+                : RedisConstants.SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public String orderKey(Long voucherId, int shard, int shards) {
+        return shards <= 1 ? RedisConstants.SECKILL_ORDER_KEY + voucherId
+                : RedisConstants.SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public String windowKey(Long voucherId, int shard, int shards) {
+        return shards <= 1 ? RedisConstants.SECKILL_WINDOW_KEY + voucherId
+                : RedisConstants.SECKILL_WINDOW_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 分片模式下正在其他分片扣库存的用户，和同一分片的下单用户集合在同一个slot
+     */
+    public String reserveKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_RESERVE_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 把秒杀时间窗口写入redis，分片模式下每个分片一份，保证和分片库存在同一个slot
+     */
+    public void initWindow(Long voucherId, LocalDateTime beginTime, LocalDateTime endTime, int shards) {
+        Map<String, String> window = new HashMap<>(2);
+        window.put("begin", String.valueOf(toMillis(beginTime)));
+        window.put("end", String.valueOf(toMillis(endTime)));
+        stringRedisTemplate.opsForHash().putAll(windowKey(voucherId, 0, 1), window);
+        for (int i = 0; shards > 1 && i < shards; i++) {
+            stringRedisTemplate.opsForHash().putAll(windowKey(voucherId, i, shards), window);
+        }
+        windowCache.put(voucherId, new long[]{toMillis(beginTime), toMillis(endTime)});
+    }
+
+    /**
+     * 用本地缓存的时间窗口预先判断，不访问redis
+     * @return 0:可以继续 4:秒杀尚未开始 5:秒杀已经结束
+     */
+    public int precheck(Long voucherId) {
+        long[] window = windowCache.get(voucherId);
+        if (window == null) {
+            window = loadWindow(voucherId);
+        }
+        if (window.length == 0) {
+            return OK;
+        }
+        long now = System.currentTimeMillis();
+        if (now < window[0] - windowTolerance) {
+            return NOT_STARTED;
+        }
+        if (now > window[1] + windowTolerance) {
+            return ENDED;
+        }
+        return OK;
+    }
+
+    private long[] loadWindow(Long voucherId) {
+        List<Object> values = stringRedisTemplate.opsForHash()
+                .multiGet(windowKey(voucherId, 0, 1), Arrays.asList("begin", "end"));
+        long[] window = values.get(0) == null || values.get(1) == null ? NO_WINDOW
+                : new long[]{Long.parseLong((String) values.get(0)), Long.parseLong((String) values.get(1))};
+        if (windowCache.size() >= WINDOW_CACHE_SIZE) {
+            windowCache.clear();
+        }
+        windowCache.put(voucherId, window);
+        return window;
+    }
+
+    static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 库存平均拆分到各个分片后，指定分片分到的库存
+     */
+    public static int shardStock(int stock, int shard, int shards) {
+        return stock / shards + (shard < stock % shards ? 1 : 0);
+    }
+
+    /**
+     * 把库存平均拆分到各个分片并写入redis
+     */
+    public void initStock(Long voucherId, int stock, int shards) {
+        shards = cacheShards(voucherId, shards);
+        for (int i = 0; i < shards; i++) {
+            stringRedisTemplate.opsForValue().set(stockKey(voucherId, i, shards), String.valueOf(shardStock(stock, i, shards)));
+        }
+    }
+
+    /**
+     * 扣减库存并记录下单用户
+     * @param orderId 订单id，streamKey为null时不使用
+     * @param streamKey 订单stream key，不为null时扣库存成功后在同一个脚本里入队
+     * @return 0:成功 1:库存不足 2:重复下单 4:秒杀尚未开始 5:秒杀已经结束 6:库存尚未预热 7:同一用户的请求正在处理
+     */
+    public int acquire(Long voucherId, Long userId, Long orderId, String streamKey) {
+        int shards = shardCount(voucherId);
+        if (streamKey != null && shards > 1) {
+            //切换到stream之前创建的分片券
+            throw new IllegalStateException("stream订单队列不支持库存分片,券" + voucherId + "的分片数为" + shards);
+        }
+        int home = homeShard(userId, shards);
+        List<String> keys = new ArrayList<>(4);
+        keys.add(stockKey(voucherId, home, shards));
+        keys.add(orderKey(voucherId, home, shards));
+        keys.add(windowKey(voucherId, home, shards));
+        if (shards > 1) {
+            keys.add(reserveKey(voucherId, home));
+        } else if (streamKey != null) {
+            keys.add(streamKey);
+        }
+        String id = orderId == null ? "" : orderId.toString();
+        Long result = scriptRegistry.execute(SECKILL_SCRIPT, keys,
+                userId.toString(), shards > 1 ? "1" : "0", id, voucherId.toString(), String.valueOf(streamMaxLen));
+        int r = result.intValue();
+        if (r != RESERVED) {
+            return r;
+        }
+        //本分片库存不足，用户已经被占住，依次到其他分片扣库存
+        boolean taken = false;
+        try {
+            for (int i = 1; i < shards; i++) {
+                int shard = (home + i) % shards;
+                List<String> takeKeys = streamKey == null
+                        ? Collections.singletonList(stockKey(voucherId, shard, shards))
+                        : Arrays.asList(stockKey(voucherId, shard, shards), streamKey);
+                Long t = scriptRegistry.execute(TAKE_SCRIPT, takeKeys,
+                        id, userId.toString(), voucherId.toString(), String.valueOf(streamMaxLen));
+                if (t != null && t.intValue() == OK) {
+                    taken = true;
+                    return OK;
+                }
+            }
+            return NO_STOCK;
+        } finally {
+            //扣到库存时保留资格，其他情况(包括异常)都释放占位
+            unreserve(voucherId, userId, home, shards, taken);
+        }
+    }
+
+    private void unreserve(Long voucherId, Long userId, int home, int shards, boolean keep) {
+        try {
+            scriptRegistry.execute(UNRESERVE_SCRIPT,
+                    Arrays.asList(orderKey(voucherId, home, shards), reserveKey(voucherId, home)),
+                    userId.toString(), keep ? "1" : "0");
+        } catch (RuntimeException e) {
+            //不能覆盖扣库存的结果，留下的占位由对账任务修复
+            log.error("释放秒杀分片占位失败, voucherId:" + voucherId + ", userId:" + userId, e);
+        }
+    }
+
+    /**
+     * 把用户从指定分片的下单集合中移除，并回补该分片库存，一次pipeline提交
+     * @return 实际释放的用户数
+     */
+    public int release(Long voucherId, List<String> userIds, int shard, int shards) {
+        List<String> keys = Arrays.asList(stockKey(voucherId, shard, shards), orderKey(voucherId, shard, shards));
+        RedisScriptRegistry.Batch batch = scriptRegistry.batch();
+        for (String userId : userIds) {
+            batch.add(RELEASE_SCRIPT, keys, userId);
+        }
+        return countReleased(batch.execute());
+    }
+
+    /**
+     * 批量释放订单占用的资格和库存，一次pipeline提交，库存回补到用户所在分片
+     * @return 实际释放的用户数
+     */
+    public int releaseBatch(List<VoucherOrder> orders) {
+        RedisScriptRegistry.Batch batch = scriptRegistry.batch();
+        for (VoucherOrder order : orders) {
+            int shards = shardCount(order.getVoucherId());
+            int home = homeShard(order.getUserId(), shards);
+            batch.add(RELEASE_SCRIPT, Arrays.asList(stockKey(order.getVoucherId(), home, shards),
+                    orderKey(order.getVoucherId(), home, shards)), order.getUserId().toString());
+        }
+        return countReleased(batch.execute());
+    }
+
+    private static int countReleased(List<Object> results) {
+        int released = 0;
+        for (Object r : results) {
+            if (r instanceof Long && (Long) r == 1L) {
+                released++;
+            }
+        }
+        return released;
+    }
+}
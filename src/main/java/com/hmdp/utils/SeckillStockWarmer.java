@@ -0,0 +1,215 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 秒杀库存预热：启动时和定时把未结束的秒杀券写入redis，redis清空或主从切换丢数据后可以自动恢复。
+ * 分片数取自数据库，只处理库存key不存在的券：先写入数据库中已下单的用户，再写时间窗口，最后用SETNX写库存，
+ * 库存key出现之前lua脚本返回未预热，请求不会绕过一人一单。
+ * 首次预热完成之前秒杀接口不接受请求
+ */
+@Slf4j
+@Component
+public class SeckillStockWarmer implements ApplicationRunner {
+    //已取消的订单不占用库存
+    private static final int STATUS_CANCELED = 4;
+    private static final int USER_PAGE = 1000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillStockRouter stockRouter;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Value("${hmdp.seckill.warmup.chunk-size:200}")
+    private int chunkSize;
+
+    private volatile boolean ready;
+    //正在按需预热的券，避免同一张券重复提交
+    private final Set<Long> warming = ConcurrentHashMap.newKeySet();
+    private final ExecutorService WARMUP_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    /**
+     * @return 首次预热是否已经完成
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        warmAll();
+    }
+
+    @Scheduled(initialDelayString = "${hmdp.seckill.warmup.interval:30000}",
+            fixedDelayString = "${hmdp.seckill.warmup.interval:30000}")
+    public void warmAll() {
+        long begin = System.currentTimeMillis();
+        int warmed = 0;
+        try {
+            long lastId = 0;
+            while (true) {
+                //按主键分页读取未结束的秒杀券
+                List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                        .gt("end_time", LocalDateTime.now())
+                        .gt("voucher_id", lastId)
+                        .orderByAsc("voucher_id")
+                        .last("limit " + chunkSize)
+                        .list();
+                if (vouchers.isEmpty()) {
+                    break;
+                }
+                warmed += warmChunk(vouchers);
+                lastId = vouchers.get(vouchers.size() - 1).getVoucherId();
+            }
+        } catch (RuntimeException e) {
+            log.error("秒杀库存预热失败", e);
+            return;
+        }
+        if (!ready || warmed > 0) {
+            log.info("秒杀库存预热完成, 写入券数:{}, 耗时:{}ms", warmed, System.currentTimeMillis() - begin);
+        }
+        ready = true;
+    }
+
+    /**
+     * lua脚本发现库存key不存在时调用，异步预热这一张券
+     */
+    public void warmAsync(Long voucherId) {
+        if (!warming.add(voucherId)) {
+            return;
+        }
+        WARMUP_EXECUTOR.submit(() -> {
+            try {
+                SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+                if (voucher != null) {
+                    List<SeckillVoucher> list = new ArrayList<>(1);
+                    list.add(voucher);
+                    warmChunk(list);
+                }
+            } catch (RuntimeException e) {
+                log.error("秒杀库存预热失败, voucherId:" + voucherId, e);
+            } finally {
+                warming.remove(voucherId);
+            }
+        });
+    }
+
+    @PreDestroy
+    private void destroy() {
+        WARMUP_EXECUTOR.shutdownNow();
+    }
+
+    /**
+     * @return 写入的券数
+     */
+    private int warmChunk(List<SeckillVoucher> vouchers) {
+        Map<Long, Integer> shardCounts = new HashMap<>(vouchers.size());
+        for (SeckillVoucher voucher : vouchers) {
+            shardCounts.put(voucher.getVoucherId(), stockRouter.cacheShards(voucher.getVoucherId(), voucher.getStockShards()));
+        }
+        //pipeline检查各分片库存key是否存在
+        List<Object> exists = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (SeckillVoucher voucher : vouchers) {
+                int shards = shardCounts.get(voucher.getVoucherId());
+                for (int i = 0; i < shards; i++) {
+                    conn.exists(stockRouter.stockKey(voucher.getVoucherId(), i, shards));
+                }
+            }
+            return null;
+        });
+        List<SeckillVoucher> missing = new ArrayList<>();
+        int idx = 0;
+        for (SeckillVoucher voucher : vouchers) {
+            boolean hot = true;
+            for (int i = 0; i < shardCounts.get(voucher.getVoucherId()); i++) {
+                hot &= Boolean.TRUE.equals(exists.get(idx++));
+            }
+            if (!hot) {
+                missing.add(voucher);
+            }
+        }
+        for (SeckillVoucher voucher : missing) {
+            Long voucherId = voucher.getVoucherId();
+            int shards = shardCounts.get(voucherId);
+            loadBuyers(voucherId, shards);
+            //库存最后写入，库存可见时下单用户已经就绪
+            String begin = String.valueOf(SeckillStockRouter.toMillis(voucher.getBeginTime()));
+            String end = String.valueOf(SeckillStockRouter.toMillis(voucher.getEndTime()));
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (int i = 0; i < shards; i++) {
+                    String windowKey = stockRouter.windowKey(voucherId, i, shards);
+                    conn.hSet(windowKey, "begin", begin);
+                    conn.hSet(windowKey, "end", end);
+                }
+                if (shards > 1) {
+                    String windowKey = stockRouter.windowKey(voucherId, 0, 1);
+                    conn.hSet(windowKey, "begin", begin);
+                    conn.hSet(windowKey, "end", end);
+                }
+                for (int i = 0; i < shards; i++) {
+                    conn.setNX(stockRouter.stockKey(voucherId, i, shards),
+                            String.valueOf(SeckillStockRouter.shardStock(voucher.getStock(), i, shards)));
+                }
+                return null;
+            });
+        }
+        return missing.size();
+    }
+
+    /**
+     * 按用户id分页读取已下单的用户，按所在分片pipeline写入下单用户集合
+     */
+    private void loadBuyers(Long voucherId, int shards) {
+        long lastUserId = 0;
+        while (true) {
+            List<VoucherOrder> orders = voucherOrderService.query().select("user_id")
+                    .eq("voucher_id", voucherId)
+                    .ne("status", STATUS_CANCELED)
+                    .gt("user_id", lastUserId)
+                    .orderByAsc("user_id")
+                    .last("limit " + USER_PAGE)
+                    .list();
+            if (orders.isEmpty()) {
+                return;
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (VoucherOrder order : orders) {
+                    int shard = stockRouter.homeShard(order.getUserId(), shards);
+                    conn.sAdd(stockRouter.orderKey(voucherId, shard, shards), order.getUserId().toString());
+                }
+                return null;
+            });
+            lastUserId = orders.get(orders.size() - 1).getUserId();
+        }
+    }
+}
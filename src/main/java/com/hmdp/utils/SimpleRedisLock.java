@@ -2,29 +2,26 @@ package com.hmdp.utils;
 
 import cn.hutool.core.lang.UUID;
 
-import org.springframework.core.io.ClassPathResource;
-import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
-import org.springframework.data.redis.core.script.RedisScript;
 
 
 import java.util.Collections;
 import java.util.concurrent.TimeUnit;
 
 public class SimpleRedisLock implements ILock{
-    private StringRedisTemplate stringRedisTemplate;
-    private String name;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisScriptRegistry scriptRegistry;
+    private final String name;
     private static final String KEY_PREFIX = "lock:";
     private static final String ID_PREFIX = UUID.randomUUID().toString(true) + "-";
-    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
-    static {
-        UNLOCK_SCRIPT = new DefaultRedisScript<>();
-        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
-        UNLOCK_SCRIPT.setResultType(Long.class);
-    }
-    public SimpleRedisLock(StringRedisTemplate stringRedisTemplate, String name) {
+    private static final String UNLOCK_SCRIPT = "unlock";
+
+    /**
+     * 解锁脚本通过注册表以EVALSHA执行
+     */
+    public SimpleRedisLock(StringRedisTemplate stringRedisTemplate, RedisScriptRegistry scriptRegistry, String name) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.scriptRegistry = scriptRegistry;
         this.name = name;
     }
 
@@ -39,8 +36,7 @@ public class SimpleRedisLock implements ILock{
     @Override
     public void unlock() {
         //调用lua脚本
-        stringRedisTemplate.execute(UNLOCK_SCRIPT,
-                Collections.singletonList(KEY_PREFIX + name),
+        scriptRegistry.execute(UNLOCK_SCRIPT, Collections.singletonList(KEY_PREFIX + name),
                 ID_PREFIX+Thread.currentThread().getId());
 //        String id = ID_PREFIX+Thread.currentThread().getId();
 //        //获取锁中的标识
@@ -0,0 +1,193 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * 本地生成的64位id：1位符号 + 31位秒时间戳 + 10位秒内毫秒数 + 10位worker id + 12位序列号。
+ * 高32位和RedisIdWorker相同(从2022-01-01开始的秒数)，某个前缀从redis自增切换到snowflake后，
+ * 下一秒开始生成的id一定大于切换前的所有id；同一秒内两种id可能重复，切换时所有节点需要同时切换(先停止发号再启动)。
+ * worker id在第一次使用时从redis租用(SET NX EX)，后台定时续约，生成id时不访问redis；
+ * 续约失败超过租约时间后不再使用原来的worker id，重新租用，避免与租到同一个worker id的节点重复。
+ * 时钟回拨不超过max-backward毫秒时等待时钟追上，超过则抛出异常
+ */
+@Slf4j
+@Component
+public class SnowflakeIdWorker {
+    //2022-01-01 00:00:00，和RedisIdWorker的开始时间相同
+    private static final long EPOCH = 1640995200000L;
+    private static final int SECOND_SHIFT = 32;
+    private static final int MILLIS_SHIFT = 22;
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final int MAX_WORKER = 1 << WORKER_BITS;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final String RENEW_SCRIPT = "worker_renew";
+    private static final String RELEASE_SCRIPT = "unlock";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisScriptRegistry scriptRegistry;
+    private final long leaseSeconds;
+    private final long maxBackwardMillis;
+    private final LongSupplier clock;
+    //RedisIdWorker按本地时间计算秒数，这里加上启动时的时区偏移，保证高32位一致
+    private final long zoneOffsetMillis;
+    private final String owner = UUID.randomUUID().toString(true);
+    //高位为上次发号的时间戳，低12位为序列号，CAS更新
+    private final AtomicLong state = new AtomicLong();
+    private volatile long workerId = -1;
+    //租约在本机视角下的到期时间
+    private volatile long leaseValidUntil;
+    private ScheduledExecutorService heartbeat;
+
+    @Autowired
+    public SnowflakeIdWorker(StringRedisTemplate stringRedisTemplate, RedisScriptRegistry scriptRegistry,
+                             @Value("${hmdp.id.worker-lease:30}") long leaseSeconds,
+                             @Value("${hmdp.id.max-backward:10}") long maxBackwardMillis) {
+        this(stringRedisTemplate, scriptRegistry, leaseSeconds, maxBackwardMillis, System::currentTimeMillis);
+    }
+
+    SnowflakeIdWorker(StringRedisTemplate stringRedisTemplate, RedisScriptRegistry scriptRegistry,
+                      long leaseSeconds, long maxBackwardMillis, LongSupplier clock) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.scriptRegistry = scriptRegistry;
+        this.leaseSeconds = leaseSeconds;
+        this.maxBackwardMillis = maxBackwardMillis;
+        this.clock = clock;
+        this.zoneOffsetMillis = TimeUnit.SECONDS.toMillis(ZoneId.systemDefault().getRules()
+                .getOffset(Instant.ofEpochMilli(clock.getAsLong())).getTotalSeconds());
+    }
+
+    public long nextId() {
+        long worker = workerId;
+        if (worker < 0 || clock.getAsLong() >= leaseValidUntil) {
+            worker = ensureLease();
+        }
+        while (true) {
+            long now = clock.getAsLong() + zoneOffsetMillis - EPOCH;
+            long last = state.get();
+            long lastTimestamp = last >>> SEQUENCE_BITS;
+            long next;
+            if (now > lastTimestamp) {
+                next = now << SEQUENCE_BITS;
+            } else if (now == lastTimestamp) {
+                if ((last & SEQUENCE_MASK) == SEQUENCE_MASK) {
+                    //本毫秒的序列号用完，等下一毫秒
+                    Thread.yield();
+                    continue;
+                }
+                next = last + 1;
+            } else {
+                long backward = lastTimestamp - now;
+                if (backward > maxBackwardMillis) {
+                    throw new IllegalStateException("时钟回拨" + backward + "ms，拒绝生成id");
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(backward));
+                continue;
+            }
+            if (state.compareAndSet(last, next)) {
+                long millis = next >>> SEQUENCE_BITS;
+                return millis / 1000 << SECOND_SHIFT
+                        | millis % 1000 << MILLIS_SHIFT
+                        | worker << SEQUENCE_BITS
+                        | (next & SEQUENCE_MASK);
+            }
+        }
+    }
+
+    public long getWorkerId() {
+        return workerId;
+    }
+
+    private synchronized long ensureLease() {
+        if (workerId >= 0 && clock.getAsLong() < leaseValidUntil) {
+            return workerId;
+        }
+        if (workerId >= 0) {
+            //租约已过期或被其他节点占用，停止续约后重新租用
+            heartbeat.shutdownNow();
+            workerId = -1;
+        }
+        //从随机位置开始找空闲的worker id，减少节点同时启动时的冲突
+        int start = ThreadLocalRandom.current().nextInt(MAX_WORKER);
+        for (int i = 0; i < MAX_WORKER; i++) {
+            int id = (start + i) % MAX_WORKER;
+            long begin = clock.getAsLong();
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(RedisConstants.ID_WORKER_KEY + id, owner, leaseSeconds, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                leaseValidUntil = begin + TimeUnit.SECONDS.toMillis(leaseSeconds);
+                workerId = id;
+                startHeartbeat();
+                log.info("租用worker id:{}", id);
+                return id;
+            }
+        }
+        throw new IllegalStateException("没有空闲的worker id");
+    }
+
+    private void startHeartbeat() {
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "id-worker-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1, TimeUnit.SECONDS.toMillis(leaseSeconds) / 3);
+        heartbeat.scheduleWithFixedDelay(this::renew, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    void renew() {
+        long begin = clock.getAsLong();
+        try {
+            Long result = scriptRegistry.execute(RENEW_SCRIPT,
+                    Collections.singletonList(RedisConstants.ID_WORKER_KEY + workerId),
+                    owner, String.valueOf(leaseSeconds));
+            if (result != null && result == 1L) {
+                leaseValidUntil = begin + TimeUnit.SECONDS.toMillis(leaseSeconds);
+                return;
+            }
+            //租约已经丢失，尝试重新占用同一个id
+            Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(
+                    RedisConstants.ID_WORKER_KEY + workerId, owner, leaseSeconds, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                leaseValidUntil = begin + TimeUnit.SECONDS.toMillis(leaseSeconds);
+            } else {
+                leaseValidUntil = 0;
+                log.error("worker id:{}已被其他节点占用，下次发号时重新租用", workerId);
+            }
+        } catch (RuntimeException e) {
+            //redis暂时不可用，租约到期前继续发号
+            log.error("worker id续约失败", e);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (heartbeat == null) {
+            return;
+        }
+        heartbeat.shutdownNow();
+        try {
+            scriptRegistry.execute(RELEASE_SCRIPT,
+                    Collections.singletonList(RedisConstants.ID_WORKER_KEY + workerId), owner);
+        } catch (RuntimeException e) {
+            log.warn("释放worker id失败: {}", e.getMessage());
+        }
+    }
+}
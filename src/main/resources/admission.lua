@@ -0,0 +1,17 @@
+--- 秒杀准入的集群滑动窗口(按秒计数,上一秒的计数按剩余比例折算)，一次领取一批许可
+--- KEYS[1] 当前秒的计数key, KEYS[2] 上一秒的计数key
+--- ARGV[1] 每秒许可数, ARGV[2] 本次领取的许可数, ARGV[3] 当前秒已经过去的比例(0~1)
+--- 返回实际领取到的许可数，0表示窗口已满
+local limit = tonumber(ARGV[1])
+local lease = tonumber(ARGV[2])
+local elapsed = tonumber(ARGV[3])
+local cur = tonumber(redis.call('get', KEYS[1]) or '0')
+local prev = tonumber(redis.call('get', KEYS[2]) or '0')
+local used = math.floor(prev * (1 - elapsed)) + cur
+local grant = math.min(lease, limit - used)
+if (grant <= 0) then
+    return 0
+end
+redis.call('incrby', KEYS[1], grant)
+redis.call('pexpire', KEYS[1], 2000)
+return grant
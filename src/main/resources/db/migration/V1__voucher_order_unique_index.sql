@@ -0,0 +1,20 @@
+-- ----------------------------
+-- 已有数据库升级：tb_voucher_order 增加一人一单的唯一索引
+-- hmdp.seckill.consumer.persist=idempotent 依赖这个索引判重，执行完成之前保持 persist=locked
+-- ----------------------------
+
+-- 1. 取消的订单不参与一人一单，active置为NULL后不受唯一索引约束
+ALTER TABLE `tb_voucher_order`
+  ADD COLUMN `active` tinyint(1) UNSIGNED NULL DEFAULT 1 COMMENT '未取消的订单为1，取消后置为NULL，不再参与一人一单的唯一约束';
+UPDATE `tb_voucher_order` SET `active` = NULL WHERE `status` = 4;
+
+-- 2. 加索引之前检查重复订单，有结果时先人工处理(取消多余的订单并把active置为NULL)，否则下一步会失败
+SELECT `user_id`, `voucher_id`, COUNT(*) AS cnt
+FROM `tb_voucher_order`
+WHERE `active` = 1
+GROUP BY `user_id`, `voucher_id`
+HAVING COUNT(*) > 1;
+
+-- 3. 唯一索引
+ALTER TABLE `tb_voucher_order`
+  ADD UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE;
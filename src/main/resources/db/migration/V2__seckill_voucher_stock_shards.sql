@@ -0,0 +1,11 @@
+-- ----------------------------
+-- 已有数据库升级：tb_seckill_voucher 保存秒杀库存的分片数
+-- 之前分片数只保存在redis的 seckill:shards:券id 中，redis清空后预热会按1个分片恢复
+-- ----------------------------
+
+ALTER TABLE `tb_seckill_voucher`
+  ADD COLUMN `stock_shards` int(4) UNSIGNED NOT NULL DEFAULT 1 COMMENT '秒杀库存在redis中的分片数' AFTER `stock`;
+
+-- 分片数大于1的券需要按redis中的值补上，例如 seckill:shards:10 的值为4：
+-- UPDATE `tb_seckill_voucher` SET `stock_shards` = 4 WHERE `voucher_id` = 10;
+-- 补完之后可以删除redis中的 seckill:shards:* 这些key
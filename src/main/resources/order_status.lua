@@ -0,0 +1,29 @@
+--- 写入秒杀订单处理状态
+--- KEYS[1] 订单状态key KEYS[2] 可选,券的 用户id -> 订单id 索引,写入排队状态时记录
+--- ARGV[1] 状态 ARGV[2] 失败原因 ARGV[3] 过期秒数 ARGV[4] 用户id ARGV[5] 通知频道 ARGV[6] 订单id
+if (ARGV[1] == 'PENDING' and KEYS[2]) then
+    redis.call('hset', KEYS[2], ARGV[4], ARGV[6])
+    redis.call('expire', KEYS[2], ARGV[3])
+end
+local current = redis.call('hget', KEYS[1], 's')
+if (ARGV[1] == 'FAILED' and current == 'CREATED') then
+    -- 重复投递的消息不能把已创建的订单改成失败
+    return 0
+end
+if (ARGV[1] == 'PENDING' and current) then
+    -- stream模式下消费者可能先于排队状态写入结果,只补充用户id
+    redis.call('hset', KEYS[1], 'u', ARGV[4])
+    return 0
+end
+redis.call('hset', KEYS[1], 's', ARGV[1])
+if (ARGV[2] ~= '') then
+    redis.call('hset', KEYS[1], 'r', ARGV[2])
+end
+if (ARGV[4] ~= '') then
+    redis.call('hset', KEYS[1], 'u', ARGV[4])
+end
+redis.call('expire', KEYS[1], ARGV[3])
+if (ARGV[1] ~= 'PENDING') then
+    redis.call('publish', ARGV[5], ARGV[6] .. ':' .. ARGV[1] .. ':' .. ARGV[2])
+end
+return 1
@@ -3,17 +3,57 @@
 --- Created by yanshiqian.
 --- DateTime: 2022/10/21 14:32
 ---
----
-local voucherId = ARGV[1]
-local userId = ARGV[2]
-local stockKey = 'seckill:stock:' .. voucherId
-local orderKey = 'seckill:order:' .. voucherId
-if (tonumber(redis.call('get', stockKey)) <= 0) then
-    return 1
+--- KEYS[1] 库存key(分片模式下为用户所在分片), KEYS[2] 下单用户集合key, KEYS[3] 秒杀时间窗口key
+--- KEYS[4] 分片模式下为本分片的占位用户集合key;不分片时可选,为订单stream key,存在时扣库存成功后在同一个脚本里入队
+--- ARGV[1] 用户id, ARGV[2] 为1时表示分片模式:本分片库存不足也先占住用户,再去其他分片扣库存
+--- ARGV[3] 订单id, ARGV[4] 优惠券id, ARGV[5] stream保留的大致条数 (仅在写入stream时使用)
+--- 返回 0:成功 1:库存不足 2:重复下单 3:分片模式下已占住用户但本分片无库存 4:秒杀尚未开始 5:秒杀已经结束
+--- 6:库存key不存在(redis数据丢失后尚未预热) 7:分片模式下该用户的另一个请求正在其他分片扣库存
+redis.replicate_commands()
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local windowKey = KEYS[3]
+local userId = ARGV[1]
+local reserveOnEmpty = ARGV[2]
+local reserveKey = nil
+local streamKey = nil
+if (reserveOnEmpty == '1') then
+    reserveKey = KEYS[4]
+else
+    streamKey = KEYS[4]
+end
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if (window[1]) then
+    local t = redis.call('time')
+    local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)
+    if (now < tonumber(window[1])) then
+        return 4
+    end
+    if (now > tonumber(window[2])) then
+        return 5
+    end
+end
+local stock = redis.call('get', stockKey)
+if (not stock) then
+    return 6
 end
 if (redis.call('sismember',orderKey,userId) == 1) then
+    if (reserveKey and redis.call('sismember',reserveKey,userId) == 1) then
+        return 7
+    end
     return 2
 end
+if (tonumber(stock) <= 0) then
+    if (reserveOnEmpty == '1') then
+        redis.call('sadd',orderKey,userId)
+        redis.call('sadd',reserveKey,userId)
+        return 3
+    end
+    return 1
+end
 redis.call('incrby',stockKey,-1)
 redis.call('sadd',orderKey,userId)
+if (streamKey) then
+    redis.call('xadd',streamKey,'MAXLEN','~',ARGV[5],'*','userId',userId,'voucherId',ARGV[4],'id',ARGV[3])
+end
 return 0
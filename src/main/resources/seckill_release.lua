@@ -0,0 +1,9 @@
+--- 释放用户的秒杀资格并回补一个库存
+--- KEYS[1] 库存key, KEYS[2] 下单用户集合key (分片模式下为同一个分片)
+--- ARGV[1] 用户id
+--- 返回 1:已释放 0:用户不在集合中
+if (redis.call('srem', KEYS[2], ARGV[1]) == 1) then
+    redis.call('incrby', KEYS[1], 1)
+    return 1
+end
+return 0
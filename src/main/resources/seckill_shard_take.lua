@@ -0,0 +1,12 @@
+--- 分片模式下用户所在分片库存不足时，到其他分片扣减库存
+--- KEYS[1] 分片库存key, KEYS[2] 可选,订单stream key
+--- ARGV[1] 订单id, ARGV[2] 用户id, ARGV[3] 优惠券id, ARGV[4] stream保留的大致条数 (仅在写入stream时使用)
+local stock = tonumber(redis.call('get', KEYS[1]))
+if (stock == nil or stock <= 0) then
+    return 1
+end
+redis.call('incrby',KEYS[1],-1)
+if (KEYS[2]) then
+    redis.call('xadd',KEYS[2],'MAXLEN','~',ARGV[4],'*','userId',ARGV[2],'voucherId',ARGV[3],'id',ARGV[1])
+end
+return 0
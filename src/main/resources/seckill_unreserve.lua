@@ -0,0 +1,8 @@
+--- 分片模式下结束用户在本分片的占位
+--- KEYS[1] 下单用户集合key, KEYS[2] 占位用户集合key (同一个分片)
+--- ARGV[1] 用户id, ARGV[2] 为1时表示已在其他分片扣到库存,保留下单资格;否则一并释放资格
+redis.call('srem', KEYS[2], ARGV[1])
+if (ARGV[2] ~= '1') then
+    redis.call('srem', KEYS[1], ARGV[1])
+end
+return 0
@@ -0,0 +1,8 @@
+--- 续约worker id，只有持有者可以续约
+--- KEYS[1] worker id的key, ARGV[1] 持有者标识, ARGV[2] 租约秒数
+--- 返回 1:续约成功 0:租约已经不属于自己
+if (redis.call('get', KEYS[1]) == ARGV[1]) then
+    redis.call('expire', KEYS[1], ARGV[2])
+    return 1
+end
+return 0
@@ -1,20 +1,73 @@
 package com.hmdp;
 
+import com.hmdp.entity.Shop;
 import com.hmdp.service.impl.ShopServiceImpl;
 
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SpringBootTest
 class HmDianPingApplicationTests {
     @Resource
     private ShopServiceImpl shopService;
+    @Resource
+    private CacheClient cacheClient;
     @Test
     void testSaveShop(){
         shopService.saveShop2Redis(1L,10L);
     }
 
+    /**
+     * 预热所有店铺，逻辑过期时间分布在30~40分钟之间
+     */
+    @Test
+    void testWarmUpShops(){
+        int count = shopService.warmUpShops(1800L, 600L);
+        assertEquals(shopService.count(), count);
+        assertNotNull(shopService.queryWithLogicalExpire(1L));
+    }
+
+    /**
+     * 缓存失效后100个并发请求，本机只应该查一次数据库
+     */
+    @Test
+    void testShopCacheSingleFlight() throws InterruptedException {
+        Long id = 1L;
+        cacheClient.delete(RedisConstants.CACHE_SHOP_KEY + id);
+        AtomicInteger loads = new AtomicInteger();
+        List<Runnable> workers = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            workers.add(() -> cacheClient.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, id, Shop.class,
+                    shopId -> {
+                        loads.incrementAndGet();
+                        return shopService.getById(shopId);
+                    }, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES));
+        }
+        runAll(workers);
+        //查完缓存到进入single flight之间，前一次加载可能刚好结束，允许多查一次
+        assertTrue(loads.get() >= 1 && loads.get() <= 2, "db loads: " + loads.get());
+    }
+
+    private void runAll(List<Runnable> workers) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(workers.size());
+        workers.forEach(pool::execute);
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES));
+    }
+
 }
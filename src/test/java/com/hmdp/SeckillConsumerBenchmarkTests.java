@@ -0,0 +1,217 @@
+package com.hmdp;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import com.hmdp.utils.RedisIdWorker;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 秒杀订单各种落库方式的吞吐对比，需要可访问的mysql和redis，默认不执行：
+ * mvn test -Dtest=SeckillConsumerBenchmarkTests -Dbenchmark=true
+ * 耗时只打印出来参考，断言只检查每种方式落库的订单数是否正确
+ */
+@SpringBootTest
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class SeckillConsumerBenchmarkTests {
+    private static final int N = 2000;
+
+    @Resource
+    private VoucherOrderServiceImpl voucherOrderService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
+    /**
+     * 对比逐条落库与批量落库的吞吐
+     */
+    @Test
+    void singleVersusBatch(){
+        int batchSize = 100;
+        long singleVoucherId = 900000001L;
+        long batchVoucherId = 900000002L;
+        prepareVoucher(singleVoucherId, N);
+        prepareVoucher(batchVoucherId, N);
+        try {
+            List<VoucherOrder> singleOrders = mockOrders(singleVoucherId, N);
+            long begin = System.currentTimeMillis();
+            for (VoucherOrder order : singleOrders) {
+                voucherOrderService.handleVoucherOrder(order);
+            }
+            long singleTime = System.currentTimeMillis() - begin;
+
+            List<VoucherOrder> batchOrders = mockOrders(batchVoucherId, N);
+            begin = System.currentTimeMillis();
+            for (int i = 0; i < N; i += batchSize) {
+                voucherOrderService.createVoucherOrderBatch(batchOrders.subList(i, Math.min(i + batchSize, N)));
+            }
+            long batchTime = System.currentTimeMillis() - begin;
+
+            assertPersisted(singleVoucherId);
+            assertPersisted(batchVoucherId);
+            print("single", singleTime);
+            print("batch(" + batchSize + ")", batchTime);
+        } finally {
+            cleanUp(singleVoucherId, batchVoucherId);
+        }
+    }
+
+    /**
+     * 对比加锁判重与唯一索引幂等写入两种落库方式的吞吐，以及重投消息的处理开销。
+     * 幂等写入直接调用createVoucherOrderIdempotent，不切换bean的落库配置
+     */
+    @Test
+    void lockedVersusIdempotent(){
+        long lockedVoucherId = 900000003L;
+        long idempotentVoucherId = 900000004L;
+        prepareVoucher(lockedVoucherId, N);
+        prepareVoucher(idempotentVoucherId, N);
+        try {
+            long lockedTime = handleAll(mockOrders(lockedVoucherId, N));
+
+            List<VoucherOrder> orders = mockOrders(idempotentVoucherId, N);
+            long idempotentTime = insertAll(orders);
+            //模拟MQ重投，唯一索引保证不会重复落库
+            long redeliverTime = insertAll(orders);
+
+            assertPersisted(lockedVoucherId);
+            assertPersisted(idempotentVoucherId);
+            print("locked", lockedTime);
+            print("idempotent", idempotentTime);
+            print("redelivered", redeliverTime);
+        } finally {
+            cleanUp(lockedVoucherId, idempotentVoucherId);
+        }
+    }
+
+    /**
+     * 对比共享队列10线程加用户锁消费与按用户分区单线程无锁消费的吞吐
+     */
+    @Test
+    void sharedVersusPartitioned() throws InterruptedException {
+        int partitions = 8;
+        long sharedVoucherId = 900000005L;
+        long partitionedVoucherId = 900000006L;
+        prepareVoucher(sharedVoucherId, N);
+        prepareVoucher(partitionedVoucherId, N);
+        try {
+            //当前的监听方式:10个线程从同一个队列取消息
+            ConcurrentLinkedQueue<VoucherOrder> shared = new ConcurrentLinkedQueue<>(mockOrders(sharedVoucherId, N));
+            List<Runnable> sharedWorkers = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                sharedWorkers.add(() -> {
+                    VoucherOrder order;
+                    while ((order = shared.poll()) != null) {
+                        voucherOrderService.handleVoucherOrder(order);
+                    }
+                });
+            }
+            long sharedTime = runAll(sharedWorkers);
+
+            //按用户id分区,每个分区一个线程
+            List<List<VoucherOrder>> parts = new ArrayList<>();
+            for (int i = 0; i < partitions; i++) {
+                parts.add(new ArrayList<>());
+            }
+            for (VoucherOrder order : mockOrders(partitionedVoucherId, N)) {
+                parts.get((int) Math.floorMod(order.getUserId(), (long) partitions)).add(order);
+            }
+            List<Runnable> partitionWorkers = new ArrayList<>();
+            for (List<VoucherOrder> part : parts) {
+                partitionWorkers.add(() -> part.forEach(order -> voucherOrderService.handleVoucherOrder(order, true)));
+            }
+            long partitionedTime = runAll(partitionWorkers);
+
+            assertPersisted(sharedVoucherId);
+            assertPersisted(partitionedVoucherId);
+            print("shared(10 threads, locked)", sharedTime);
+            print("partitioned(" + partitions + ")", partitionedTime);
+        } finally {
+            cleanUp(sharedVoucherId, partitionedVoucherId);
+        }
+    }
+
+    private long runAll(List<Runnable> workers) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(workers.size());
+        long begin = System.currentTimeMillis();
+        workers.forEach(pool::execute);
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.MINUTES));
+        return System.currentTimeMillis() - begin;
+    }
+
+    private long handleAll(List<VoucherOrder> orders){
+        long begin = System.currentTimeMillis();
+        for (VoucherOrder order : orders) {
+            voucherOrderService.handleVoucherOrder(order);
+        }
+        return System.currentTimeMillis() - begin;
+    }
+
+    private long insertAll(List<VoucherOrder> orders){
+        long begin = System.currentTimeMillis();
+        for (VoucherOrder order : orders) {
+            voucherOrderService.createVoucherOrderIdempotent(order);
+        }
+        return System.currentTimeMillis() - begin;
+    }
+
+    /**
+     * 每个用户一单，库存正好用完
+     */
+    private void assertPersisted(long voucherId){
+        assertEquals(N, voucherOrderService.query().eq("voucher_id", voucherId).count());
+        assertEquals(0, seckillVoucherService.getById(voucherId).getStock());
+    }
+
+    private static void print(String name, long millis){
+        System.out.println(name + ": " + N * 1000L / Math.max(millis, 1) + " orders/s, cost " + millis + "ms");
+    }
+
+    private void prepareVoucher(long voucherId, int stock){
+        SeckillVoucher voucher = new SeckillVoucher();
+        voucher.setVoucherId(voucherId);
+        voucher.setStock(stock);
+        voucher.setBeginTime(LocalDateTime.now());
+        voucher.setEndTime(LocalDateTime.now().plusDays(1));
+        seckillVoucherService.saveOrUpdate(voucher);
+    }
+
+    private List<VoucherOrder> mockOrders(long voucherId, int n){
+        List<VoucherOrder> orders = new ArrayList<>(n);
+        for (int i = 1; i <= n; i++) {
+            VoucherOrder order = new VoucherOrder();
+            order.setId(redisIdWorker.nextId("order"));
+            order.setUserId((long) i);
+            order.setVoucherId(voucherId);
+            orders.add(order);
+        }
+        return orders;
+    }
+
+    private void cleanUp(long... voucherIds){
+        List<Long> ids = new ArrayList<>(voucherIds.length);
+        for (long id : voucherIds) {
+            ids.add(id);
+        }
+        voucherOrderService.remove(new QueryWrapper<VoucherOrder>().in("voucher_id", ids));
+        seckillVoucherService.removeByIds(ids);
+    }
+}
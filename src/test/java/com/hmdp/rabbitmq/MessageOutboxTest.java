@@ -0,0 +1,216 @@
+package com.hmdp.rabbitmq;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageOutboxTest {
+    //文件头64字节，之后可以放下十几条100字节左右的记录
+    private static final int CAPACITY = 2048;
+
+    @TempDir
+    Path dir;
+
+    private final List<MessageOutbox> opened = new ArrayList<>();
+
+    @AfterEach
+    void closeAll() throws IOException {
+        for (MessageOutbox outbox : opened) {
+            outbox.close();
+        }
+    }
+
+    @Test
+    void appendPeekAndConfirm() throws IOException {
+        MessageOutbox outbox = open();
+        assertTrue(outbox.isEmpty());
+        assertTrue(outbox.append("rk", "m1"));
+        assertTrue(outbox.append("rk", "m2"));
+        assertFalse(outbox.isEmpty());
+
+        MessageOutbox.Batch batch = outbox.peek(10);
+        assertEquals(messages("m1", "m2"), bodies(batch));
+        //peek不推进偏移量
+        assertEquals(messages("m1", "m2"), bodies(outbox.peek(10)));
+
+        outbox.confirm(batch);
+        assertTrue(outbox.isEmpty());
+        assertTrue(outbox.peek(10).getRecords().isEmpty());
+    }
+
+    @Test
+    void peekRespectsMaxAndPartialConfirm() throws IOException {
+        MessageOutbox outbox = open();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(outbox.append("rk", "m" + i));
+        }
+        MessageOutbox.Batch first = outbox.peek(2);
+        assertEquals(messages("m0", "m1"), bodies(first));
+        outbox.confirm(first);
+        assertEquals(messages("m2", "m3", "m4"), bodies(outbox.peek(10)));
+        assertEquals("rk", outbox.peek(1).getRecords().get(0)[0]);
+    }
+
+    @Test
+    void wrapsAroundAfterConfirm() throws IOException {
+        MessageOutbox outbox = open();
+        String body = payload(100);
+        //写到尾部空间不够为止
+        int written = 0;
+        while (outbox.append("rk", body + written)) {
+            written++;
+        }
+        assertTrue(written > 2);
+        //确认前半部分，腾出文件头之后的空间
+        MessageOutbox.Batch head = outbox.peek(written / 2 + 1);
+        outbox.confirm(head);
+        int tail = written - head.getRecords().size();
+
+        //新记录回绕到文件头之后
+        assertTrue(outbox.append("rk", "wrapped-1"));
+        assertTrue(outbox.append("rk", "wrapped-2"));
+
+        List<String> expected = new ArrayList<>();
+        for (int i = written - tail; i < written; i++) {
+            expected.add(body + i);
+        }
+        expected.add("wrapped-1");
+        expected.add("wrapped-2");
+        assertEquals(expected, bodies(outbox.peek(100)));
+
+        //回绕后不能追上未确认的记录
+        int more = 0;
+        while (outbox.append("rk", body)) {
+            more++;
+        }
+        assertTrue(more < written);
+        List<String[]> all = outbox.peek(100).getRecords();
+        assertEquals(expected, bodies(all).subList(0, expected.size()));
+        assertEquals(expected.size() + more, all.size());
+    }
+
+    @Test
+    void rejectsWhenFullWithoutConfirm() throws IOException {
+        MessageOutbox outbox = open();
+        String body = payload(100);
+        int written = 0;
+        while (outbox.append("rk", body)) {
+            written++;
+        }
+        //尾部剩下的空间用短消息填满，没有确认过的记录时不能回绕
+        while (outbox.append("rk", "x")) {
+            written++;
+        }
+        assertEquals(written, outbox.peek(100).getRecords().size());
+        assertFalse(outbox.append("rk", "x"));
+    }
+
+    @Test
+    void replaysUnconfirmedAfterReopen() throws IOException {
+        Path file = dir.resolve("outbox.log");
+        MessageOutbox outbox = new MessageOutbox(file.toString(), CAPACITY);
+        outbox.append("rk", "m1");
+        outbox.append("rk", "m2");
+        outbox.append("rk", "m3");
+        outbox.confirm(outbox.peek(1));
+        outbox.close();
+
+        MessageOutbox reopened = open(file);
+        assertEquals(messages("m2", "m3"), bodies(reopened.peek(10)));
+        //重新打开后继续追加到未确认记录的后面
+        assertTrue(reopened.append("rk", "m4"));
+        assertEquals(messages("m2", "m3", "m4"), bodies(reopened.peek(10)));
+    }
+
+    @Test
+    void replaysWrappedRecordsAfterReopen() throws IOException {
+        Path file = dir.resolve("outbox.log");
+        MessageOutbox outbox = new MessageOutbox(file.toString(), CAPACITY);
+        String body = payload(100);
+        int written = 0;
+        while (outbox.append("rk", body + written)) {
+            written++;
+        }
+        MessageOutbox.Batch head = outbox.peek(written - 1);
+        outbox.confirm(head);
+        assertTrue(outbox.append("rk", "wrapped"));
+        List<String> expected = bodies(outbox.peek(100));
+        outbox.close();
+
+        MessageOutbox reopened = open(file);
+        assertEquals(expected, bodies(reopened.peek(100)));
+        assertEquals(messages(body + (written - 1), "wrapped"), expected);
+    }
+
+    @Test
+    void fullyConfirmedOutboxIsEmptyAfterReopen() throws IOException {
+        Path file = dir.resolve("outbox.log");
+        MessageOutbox outbox = new MessageOutbox(file.toString(), CAPACITY);
+        outbox.append("rk", "m1");
+        outbox.confirm(outbox.peek(10));
+        outbox.close();
+
+        MessageOutbox reopened = open(file);
+        assertTrue(reopened.isEmpty());
+        assertTrue(reopened.peek(10).getRecords().isEmpty());
+    }
+
+    @Test
+    void sameFileCannotBeOpenedTwice() throws IOException {
+        Path file = dir.resolve("outbox.log");
+        open(file);
+        assertThrows(IOException.class, () -> new MessageOutbox(file.toString(), CAPACITY));
+    }
+
+    @Test
+    void rejectsInvalidCapacity() {
+        String path = dir.resolve("outbox.log").toString();
+        assertThrows(IllegalArgumentException.class, () -> new MessageOutbox(path, 2048L * 1024 * 1024));
+        assertThrows(IllegalArgumentException.class, () -> new MessageOutbox(path, 16));
+    }
+
+    private MessageOutbox open() throws IOException {
+        return open(dir.resolve("outbox.log"));
+    }
+
+    private MessageOutbox open(Path file) throws IOException {
+        MessageOutbox outbox = new MessageOutbox(file.toString(), CAPACITY);
+        opened.add(outbox);
+        return outbox;
+    }
+
+    private static List<String> bodies(MessageOutbox.Batch batch) {
+        return bodies(batch.getRecords());
+    }
+
+    private static List<String> bodies(List<String[]> records) {
+        List<String> bodies = new ArrayList<>(records.size());
+        for (String[] record : records) {
+            bodies.add(record[1]);
+        }
+        return bodies;
+    }
+
+    private static List<String> messages(String... messages) {
+        return Arrays.asList(messages);
+    }
+
+    private static String payload(int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        return sb.toString();
+    }
+}
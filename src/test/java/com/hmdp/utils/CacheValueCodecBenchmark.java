@@ -0,0 +1,92 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比json与二进制格式编解码一个店铺的耗时，每条数据的字节数在setup时打印
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class CacheValueCodecBenchmark {
+    @Param({"json", "binary"})
+    private String codecName;
+
+    private CacheValueCodec codec;
+    private Shop shop;
+    private RedisData redisData;
+    private byte[] encoded;
+    private byte[] encodedWithExpire;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        codec = "binary".equals(codecName) ? new BinaryCacheValueCodec() : new JsonCacheValueCodec();
+        shop = new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+        redisData = new RedisData();
+        redisData.setData(shop);
+        redisData.setExpireTime(LocalDateTime.now().plusMinutes(30));
+        encoded = codec.encode(shop);
+        encodedWithExpire = codec.encodeWithExpire(redisData);
+        System.out.println(codecName + ": " + encoded.length + " bytes, with expire " + encodedWithExpire.length + " bytes");
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.encode(shop);
+    }
+
+    @Benchmark
+    public Shop decode() {
+        return codec.decode(encoded, Shop.class);
+    }
+
+    @Benchmark
+    public byte[] encodeWithExpire() {
+        return codec.encodeWithExpire(redisData);
+    }
+
+    @Benchmark
+    public RedisData decodeWithExpire() {
+        return codec.decodeWithExpire(encodedWithExpire, Shop.class);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(CacheValueCodecBenchmark.class.getSimpleName()).build()).run();
+    }
+}
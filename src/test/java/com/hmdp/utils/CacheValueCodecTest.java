@@ -0,0 +1,60 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CacheValueCodecTest {
+    private final JsonCacheValueCodec json = new JsonCacheValueCodec();
+    private final BinaryCacheValueCodec binary = new BinaryCacheValueCodec();
+
+    @Test
+    void jsonReadsBinaryValues() {
+        Shop shop = shop();
+        assertEquals(shop, json.decode(binary.encode(shop), Shop.class));
+
+        RedisData redisData = redisData(shop);
+        RedisData decoded = json.decodeWithExpire(binary.encodeWithExpire(redisData), Shop.class);
+        assertEquals(redisData.getExpireTime(), decoded.getExpireTime());
+        assertEquals(shop, decoded.getData());
+    }
+
+    @Test
+    void binaryReadsJsonValues() {
+        Shop shop = shop();
+        assertEquals(shop, binary.decode(json.encode(shop), Shop.class));
+
+        RedisData redisData = redisData(shop);
+        RedisData decoded = binary.decodeWithExpire(json.encodeWithExpire(redisData), Shop.class);
+        assertEquals(redisData.getExpireTime(), decoded.getExpireTime());
+        assertEquals(shop, decoded.getData());
+    }
+
+    private static Shop shop() {
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+    }
+
+    private static RedisData redisData(Shop shop) {
+        RedisData redisData = new RedisData();
+        redisData.setData(shop);
+        redisData.setExpireTime(LocalDateTime.of(2024, 3, 1, 12, 0, 0));
+        return redisData;
+    }
+}
@@ -0,0 +1,138 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RedisIdWorkerTest {
+    private static final long COUNT_MASK = (1L << 32) - 1;
+    private static final int STEP = 10;
+    //2024-03-01 23:59:59
+    private static final long LAST_SECOND = LocalDateTime.of(2024, 3, 1, 23, 59, 59).toEpochSecond(ZoneOffset.UTC);
+
+    private StringRedisTemplate template;
+    private ValueOperations<String, String> ops;
+    //key -> 模拟的redis计数
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        template = mock(StringRedisTemplate.class);
+        ops = mock(ValueOperations.class);
+        when(template.opsForValue()).thenReturn(ops);
+        when(ops.increment(anyString())).thenAnswer(invocation ->
+                counter(invocation.getArgument(0)).incrementAndGet());
+        when(ops.increment(anyString(), anyLong())).thenAnswer(invocation ->
+                counter(invocation.getArgument(0)).addAndGet(invocation.getArgument(1)));
+    }
+
+    @Test
+    void incrIsTheDefaultMode() {
+        RedisIdWorker worker = new RedisIdWorker(template);
+        assertEquals(1, worker.nextId("order", LAST_SECOND) & COUNT_MASK);
+        assertEquals(2, worker.nextId("order", LAST_SECOND) & COUNT_MASK);
+        verify(ops, times(2)).increment("icr:order:20240301");
+    }
+
+    @Test
+    void switchesToPrefetchedSegment() {
+        RedisIdWorker worker = new RedisIdWorker(template, "segment", STEP, 0.2);
+        //剩余不到2个时异步预取下一段
+        for (long expected = 1; expected <= 9; expected++) {
+            assertEquals(expected, worker.nextId("order", LAST_SECOND) & COUNT_MASK);
+        }
+        verify(ops, timeout(1000).times(2)).increment("icr:order:20240301", STEP);
+
+        //当前号段用完后直接切换到预取的号段，不再同步访问redis
+        for (long expected = 10; expected <= 17; expected++) {
+            assertEquals(expected, worker.nextId("order", LAST_SECOND) & COUNT_MASK);
+        }
+        verify(ops, times(2)).increment("icr:order:20240301", STEP);
+    }
+
+    @Test
+    void segmentIdsAreUniqueUnderContention() throws Exception {
+        RedisIdWorker worker = new RedisIdWorker(template, "segment", STEP, 0.2);
+        int threads = 8;
+        int perThread = 2000;
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(pool.submit(() -> {
+                start.await();
+                for (int i = 0; i < perThread; i++) {
+                    ids.add(worker.nextId("order", LAST_SECOND));
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> f : futures) {
+            f.get(30, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+
+        assertEquals(threads * perThread, ids.size());
+        //预取的号段最多浪费一段
+        assertTrue(counter("icr:order:20240301").get() <= threads * perThread + 2L * STEP);
+    }
+
+    @Test
+    void segmentRestartsOnNewDay() {
+        RedisIdWorker worker = new RedisIdWorker(template, "segment", STEP, 0.2);
+        for (int i = 0; i < 9; i++) {
+            worker.nextId("order", LAST_SECOND);
+        }
+        verify(ops, timeout(1000).times(2)).increment("icr:order:20240301", STEP);
+
+        //日期变化后丢弃前一天的号段和预取的号段，序列号从新的key重新开始
+        long id = worker.nextId("order", LAST_SECOND + 1);
+        assertEquals(1, id & COUNT_MASK);
+        assertEquals(LAST_SECOND + 1 - 1640995200L, id >>> 32);
+        assertEquals(2, worker.nextId("order", LAST_SECOND + 1) & COUNT_MASK);
+        verify(ops).increment("icr:order:20240302", STEP);
+        verify(ops, times(2)).increment("icr:order:20240301", STEP);
+    }
+
+    @Test
+    void incrUsesNewKeyOnNewDay() {
+        RedisIdWorker worker = new RedisIdWorker(template, "incr", STEP, 0.2);
+        worker.nextId("order", LAST_SECOND);
+        worker.nextId("order", LAST_SECOND);
+        assertEquals(1, worker.nextId("order", LAST_SECOND + 1) & COUNT_MASK);
+        verify(ops, times(2)).increment("icr:order:20240301");
+        verify(ops).increment("icr:order:20240302");
+    }
+
+    private AtomicLong counter(String key) {
+        return counters.computeIfAbsent(key, k -> new AtomicLong());
+    }
+}
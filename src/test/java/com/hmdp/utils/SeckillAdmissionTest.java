@@ -0,0 +1,87 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class SeckillAdmissionTest {
+    private static final long VOUCHER_ID = 1L;
+
+    @Test
+    void consumesLeftoverPermitsBeforeRejecting() {
+        RedisScriptRegistry registry = mock(RedisScriptRegistry.class);
+        AtomicInteger calls = new AtomicInteger();
+        //第一次领到10个，之后窗口已满
+        when(registry.execute(eq("admission"), anyList(), anyString(), anyString(), anyString()))
+                .thenAnswer(invocation -> calls.incrementAndGet() == 1 ? 10L : 0L);
+        SeckillAdmission admission = new SeckillAdmission(registry, true, 1_000_000, 1_000_000, 100, 10);
+
+        int admitted = 0;
+        for (int i = 0; i < 10; i++) {
+            if (admission.tryAdmit(VOUCHER_ID)) {
+                admitted++;
+            }
+        }
+        assertEquals(10, admitted);
+        assertFalse(admission.tryAdmit(VOUCHER_ID));
+        assertFalse(admission.tryAdmit(VOUCHER_ID));
+        //剩余不到一半时提前补充一次，窗口满了之后本秒内不再访问redis
+        assertTrue(calls.get() <= 4, "redis calls: " + calls.get());
+        assertEquals(10, admission.getAdmitted());
+        assertEquals(2, admission.getShedCluster());
+    }
+
+    @Test
+    void onlyOneThreadLeasesAtATime() throws Exception {
+        RedisScriptRegistry registry = mock(RedisScriptRegistry.class);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        when(registry.execute(eq("admission"), anyList(), anyString(), anyString(), anyString()))
+                .thenAnswer(invocation -> {
+                    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                    Thread.sleep(5);
+                    inFlight.decrementAndGet();
+                    return 20L;
+                });
+        SeckillAdmission admission = new SeckillAdmission(registry, true, 1_000_000, 1_000_000, 1_000_000, 20);
+
+        int threads = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(pool.submit(() -> {
+                start.await();
+                for (int i = 0; i < 200; i++) {
+                    admission.tryAdmit(VOUCHER_ID);
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> f : futures) {
+            f.get(30, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+
+        assertEquals(1, maxInFlight.get());
+        assertEquals(threads * 200, admission.getAdmitted() + admission.getShedCluster());
+        assertTrue(admission.getAdmitted() > 0);
+    }
+}
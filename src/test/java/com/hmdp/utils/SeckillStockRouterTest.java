@@ -0,0 +1,76 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SeckillStockRouterTest {
+    private static final Long VOUCHER_ID = 10L;
+    private static final Long USER_ID = 1L;
+    private static final int SHARDS = 2;
+
+    private RedisScriptRegistry scriptRegistry;
+    private SeckillStockRouter router;
+    private int home;
+
+    @BeforeEach
+    void setUp() {
+        scriptRegistry = mock(RedisScriptRegistry.class);
+        ISeckillVoucherService voucherService = mock(ISeckillVoucherService.class);
+        SeckillVoucher voucher = new SeckillVoucher();
+        voucher.setVoucherId(VOUCHER_ID);
+        voucher.setStockShards(SHARDS);
+        when(voucherService.getById(VOUCHER_ID)).thenReturn(voucher);
+        router = new SeckillStockRouter(mock(StringRedisTemplate.class), scriptRegistry, voucherService,
+                1, 1000, 1000, "rabbitmq");
+        home = router.homeShard(USER_ID, SHARDS);
+        //本分片库存不足，先占住用户
+        when(scriptRegistry.execute(eq("seckill"), anyList(),
+                anyString(), anyString(), anyString(), anyString(), anyString())).thenReturn(3L);
+    }
+
+    @Test
+    void keepsBuyerWhenAnotherShardHasStock() {
+        when(scriptRegistry.execute(eq("seckill_shard_take"), anyList(),
+                anyString(), anyString(), anyString(), anyString())).thenReturn(0L);
+        assertEquals(SeckillStockRouter.OK, router.acquire(VOUCHER_ID, USER_ID, null, null));
+        verifyUnreserve("1");
+    }
+
+    @Test
+    void releasesReservationWhenNoShardHasStock() {
+        when(scriptRegistry.execute(eq("seckill_shard_take"), anyList(),
+                anyString(), anyString(), anyString(), anyString())).thenReturn(1L);
+        assertEquals(SeckillStockRouter.NO_STOCK, router.acquire(VOUCHER_ID, USER_ID, null, null));
+        verifyUnreserve("0");
+    }
+
+    @Test
+    void releasesReservationWhenTakeFails() {
+        when(scriptRegistry.execute(eq("seckill_shard_take"), anyList(),
+                anyString(), anyString(), anyString(), anyString()))
+                .thenThrow(new RedisConnectionFailureException("down"));
+        assertThrows(RedisConnectionFailureException.class, () -> router.acquire(VOUCHER_ID, USER_ID, null, null));
+        verifyUnreserve("0");
+    }
+
+    private void verifyUnreserve(String keep) {
+        verify(scriptRegistry).execute("seckill_unreserve",
+                Arrays.asList(router.orderKey(VOUCHER_ID, home, SHARDS), router.reserveKey(VOUCHER_ID, home)),
+                USER_ID.toString(), keep);
+    }
+}
@@ -0,0 +1,118 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class SnowflakeIdWorkerTest {
+    private static final long BEGIN_TIMESTAMP = 1640995200L;
+    private static final long WORKER_MASK = (1L << 10) - 1;
+    //2024-03-01 12:00:00.500 UTC
+    private static final long T0 = 1709294400500L;
+
+    private final AtomicLong now = new AtomicLong(T0);
+    //每次读取时钟后前进的毫秒数
+    private final AtomicLong tick = new AtomicLong();
+    //已被占用的worker id key
+    private final Set<String> claimed = ConcurrentHashMap.newKeySet();
+    private RedisScriptRegistry scriptRegistry;
+    private SnowflakeIdWorker worker;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> ops = mock(ValueOperations.class);
+        when(template.opsForValue()).thenReturn(ops);
+        when(ops.setIfAbsent(anyString(), anyString(), anyLong(), eq(TimeUnit.SECONDS)))
+                .thenAnswer(invocation -> claimed.add(invocation.getArgument(0)));
+        scriptRegistry = mock(RedisScriptRegistry.class);
+        worker = new SnowflakeIdWorker(template, scriptRegistry, 30, 10, () -> now.getAndAdd(tick.get()));
+    }
+
+    @Test
+    void idsStayAboveRedisIdsOfEarlierSeconds() {
+        long id = worker.nextId();
+        //RedisIdWorker按本地时间计算秒数
+        long offset = ZoneId.systemDefault().getRules().getOffset(Instant.ofEpochMilli(T0)).getTotalSeconds();
+        long second = T0 / 1000 + offset - BEGIN_TIMESTAMP;
+        assertEquals(second, id >>> 32);
+        //上一秒redis自增能生成的最大id
+        long redisMax = (second - 1) << 32 | 0xFFFFFFFFL;
+        assertTrue(id > redisMax);
+    }
+
+    @Test
+    void idsIncreaseWithinTheSameMillisecond() {
+        long first = worker.nextId();
+        long second = worker.nextId();
+        assertEquals(first + 1, second);
+    }
+
+    @Test
+    void waitsForSmallClockRollback() {
+        long first = worker.nextId();
+        //回拨5ms，不超过max-backward，等时钟追上后继续发号
+        now.set(T0 - 5);
+        tick.set(1);
+        long second = worker.nextId();
+        assertTrue(second > first);
+        assertTrue(now.get() >= T0);
+    }
+
+    @Test
+    void rejectsLargeClockRollback() {
+        worker.nextId();
+        now.set(T0 - 50);
+        assertThrows(IllegalStateException.class, worker::nextId);
+        //时钟恢复后可以继续发号
+        now.set(T0 + 1);
+        worker.nextId();
+    }
+
+    @Test
+    void reLeasesAfterLostLease() {
+        long first = worker.nextId();
+        long lost = worker.getWorkerId();
+        assertEquals(lost, first >>> 12 & WORKER_MASK);
+
+        //续约时发现租约已经属于其他节点，原来的worker id也无法重新占用
+        when(scriptRegistry.execute(eq("worker_renew"), anyList(), anyString(), anyString())).thenReturn(0L);
+        worker.renew();
+
+        long second = worker.nextId();
+        long leased = worker.getWorkerId();
+        assertNotEquals(lost, leased);
+        assertEquals(leased, second >>> 12 & WORKER_MASK);
+    }
+
+    @Test
+    void reLeasesAfterLeaseExpires() {
+        worker.nextId();
+        long expired = worker.getWorkerId();
+        //续约一直失败，租约到期后不再使用原来的worker id
+        now.addAndGet(TimeUnit.SECONDS.toMillis(31));
+        long id = worker.nextId();
+        assertNotEquals(expired, worker.getWorkerId());
+        assertEquals(worker.getWorkerId(), id >>> 12 & WORKER_MASK);
+    }
+}